@@ -0,0 +1,148 @@
+package tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+import util.tar.Assert;
+
+/**
+ * Reads a tar archive through memory mappings of the archive file. Headers are parsed from the mapping and the
+ * content of each entry is exposed as a read-only {@link ByteBuffer} slice of it, so reading an entry copies nothing
+ * and the pages are shared with every other reader of the archive.
+ *
+ * <p>The archive is mapped lazily in chunks, which lets archives larger than 2 GB be read. Entries crossing a chunk
+ * boundary are mapped on their own; an entry larger than 2 GB cannot be sliced.
+ *
+ * <pre>
+ * MappedTarReader reader = new MappedTarReader(archive);
+ * try {
+ *     for (TarArchiveEntry entry = reader.getNextEntry(); entry != null; entry = reader.getNextEntry()) {
+ *         ByteBuffer content = reader.getContent();
+ *         ...
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ */
+public class MappedTarReader extends TarEntryScanner implements Closeable {
+
+    /**
+     * Default size of the mapped chunks.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+
+    private final long length;
+
+    private final int chunkSize;
+
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * Creates a new reader for the given archive file.
+     *
+     * @param archiveFile the archive file.
+     * @throws IOException if an io exception occures.
+     */
+    public MappedTarReader(File archiveFile) throws IOException {
+        this(archiveFile, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new reader for the given archive file.
+     *
+     * @param archiveFile the archive file.
+     * @param chunkSize the size of the mapped chunks, a positive multiple of the tar record size.
+     * @throws IOException if an io exception occures.
+     */
+    public MappedTarReader(File archiveFile, int chunkSize) throws IOException {
+        this(FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ), chunkSize);
+    }
+
+    private MappedTarReader(FileChannel channel, int chunkSize) throws IOException {
+        super(channel);
+        Assert.isTrue(chunkSize > 0 && chunkSize % 512 == 0, "chunkSize must be a positive multiple of 512");
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        this.length = channel.size();
+        this.chunks = new MappedByteBuffer[(int) ((length + chunkSize - 1) / chunkSize)];
+    }
+
+    /**
+     * Returns the content of the current entry.
+     *
+     * @return a read-only buffer over the content of the current entry, positioned at zero.
+     * @throws IOException if the entry cannot be mapped.
+     */
+    public ByteBuffer getContent() throws IOException {
+        return slice(getDataOffset(), getDataSize());
+    }
+
+    /**
+     * Returns a region of the archive. The region is a slice of a shared chunk when it fits in one, otherwise it is
+     * mapped on its own.
+     *
+     * @param offset the offset of the region.
+     * @param size the size of the region.
+     * @return a read-only buffer over the region, positioned at zero.
+     * @throws IOException if the region is larger than 2 GB or exceeds the archive.
+     */
+    public ByteBuffer slice(long offset, long size) throws IOException {
+        if (offset < 0 || size < 0 || offset + size > length) {
+            throw new EOFException("Region " + offset + "+" + size + " exceeds the archive of " + length + " bytes");
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Region " + offset + "+" + size + " is too large to be mapped");
+        }
+
+        int start = (int) (offset % chunkSize);
+        if (start + size > chunkSize) {
+            return channel.map(MapMode.READ_ONLY, offset, size);
+        }
+        ByteBuffer chunk = getChunk((int) (offset / chunkSize)).duplicate();
+        chunk.limit(start + (int) size);
+        chunk.position(start);
+        return chunk.slice();
+    }
+
+    /**
+     * Reads from the mapping instead of the channel.
+     */
+    @Override
+    protected int read(ByteBuffer buffer, long offset) throws IOException {
+        if (offset >= length) {
+            return -1;
+        }
+        int start = (int) (offset % chunkSize);
+        ByteBuffer chunk = getChunk((int) (offset / chunkSize)).duplicate();
+        chunk.position(start);
+        chunk.limit(Math.min(chunk.limit(), start + buffer.remaining()));
+        int count = chunk.remaining();
+        buffer.put(chunk);
+        return count;
+    }
+
+    /**
+     * Closes the archive channel. The mappings stay valid until the buffers handed out are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer getChunk(int index) throws IOException {
+        MappedByteBuffer chunk = chunks[index];
+        if (chunk == null) {
+            long position = (long) index * chunkSize;
+            chunk = channel.map(MapMode.READ_ONLY, position, Math.min(chunkSize, length - position));
+            chunks[index] = chunk;
+        }
+        return chunk;
+    }
+}
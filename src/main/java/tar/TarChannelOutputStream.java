@@ -0,0 +1,294 @@
+package tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+import util.tar.ITransferableOutput;
+
+/**
+ * Tar output stream writing to a channel. Headers and padding are written by the stream itself, entry content can be
+ * transferred from file channels with {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that it
+ * never enters the java heap.
+ *
+ * <p>The produced archive has the same layout as the one of a default
+ * {@link org.apache.commons.compress.archivers.tar.TarArchiveOutputStream}, except that sizes above 8 GiB are stored
+ * in the binary (star) encoding instead of being rejected. {@link TarSparseEntry sparse entries} are written with
+ * their old GNU sparse headers.
+ */
+public class TarChannelOutputStream extends ArchiveOutputStream implements ITransferableOutput {
+
+    private static final int RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+
+    private static final int BLOCK_SIZE = TarConstants.DEFAULT_BLKSIZE;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final WritableByteChannel channel;
+
+    /**
+     * Whether the channel is closed with the stream.
+     */
+    private final boolean closeChannel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final ZipEncoding encoding = ZipEncodingHelper.getZipEncoding(null);
+
+    private TarArchiveEntry currentEntry;
+
+    private long currentSize;
+
+    private long currentBytes;
+
+    private long bytesWritten;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream writing at the current position of the given channel.
+     *
+     * @param channel the channel the archive is written to.
+     */
+    public TarChannelOutputStream(WritableByteChannel channel) {
+        this(channel, 0);
+    }
+
+    /**
+     * Creates a new stream writing at the current position of the given channel, which is the given offset within the
+     * archive. Used to append entries to an existing archive.
+     *
+     * @param channel the channel the archive is written to.
+     * @param offset the offset of the first byte written, a multiple of the record size.
+     */
+    public TarChannelOutputStream(WritableByteChannel channel, long offset) {
+        this(channel, offset, true);
+    }
+
+    /**
+     * Creates a new stream writing at the current position of the given channel, which is the given offset within the
+     * archive.
+     *
+     * @param channel the channel the archive is written to.
+     * @param offset the offset of the first byte written, a multiple of the record size.
+     * @param closeChannel <code>false</code> to leave the channel open when the stream is closed, for a channel owned
+     * by the caller.
+     */
+    public TarChannelOutputStream(WritableByteChannel channel, long offset, boolean closeChannel) {
+        this.channel = channel;
+        this.bytesWritten = offset;
+        this.closeChannel = closeChannel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putArchiveEntry(ArchiveEntry archiveEntry) throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+        if (currentEntry != null) {
+            closeArchiveEntry();
+        }
+        TarArchiveEntry entry = (TarArchiveEntry) archiveEntry;
+        checkLength("file name", entry.getName());
+        checkLength("link name", entry.getLinkName());
+
+        byte[] header;
+        if (entry instanceof TarSparseEntry) {
+            header = ((TarSparseEntry) entry).formatHeaders(encoding);
+        } else {
+            header = new byte[RECORD_SIZE];
+            entry.writeEntryHeader(header, encoding, true);
+        }
+        write(ByteBuffer.wrap(header));
+
+        currentEntry = entry;
+        currentSize = entry.isDirectory() ? 0 : entry.getSize();
+        currentBytes = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeArchiveEntry() throws IOException {
+        if (currentEntry == null) {
+            throw new IOException("No current entry to close");
+        }
+        if (currentBytes < currentSize) {
+            throw new IOException("entry '" + currentEntry.getName() + "' closed at '" + currentBytes
+                    + "' before the '" + currentSize + "' bytes specified in the header were written");
+        }
+        pad(RECORD_SIZE);
+        currentEntry = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkRemaining(length);
+        write(ByteBuffer.wrap(data, offset, length));
+        currentBytes += length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        checkRemaining(count);
+        flushBuffer();
+
+        long transferred = 0;
+        while (transferred < count) {
+            long result = source.transferTo(position + transferred, count - transferred, channel);
+            if (result <= 0) {
+                throw new EOFException("Unexpected end of source after " + transferred + " of " + count + " bytes");
+            }
+            transferred += result;
+        }
+        currentBytes += count;
+        bytesWritten += count;
+    }
+
+    /**
+     * Writes the end of archive records, padding the archive to a full block.
+     *
+     * @throws IOException if an io exception occures.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            throw new IOException("This archive has already been finished");
+        }
+        if (currentEntry != null) {
+            throw new IOException("This archives contains unclosed entries.");
+        }
+        write(ByteBuffer.allocate(2 * RECORD_SIZE));
+        pad(BLOCK_SIZE);
+        flushBuffer();
+        finished = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * Finishes the archive if needed and closes the underlying channel, unless it is owned by the caller.
+     *
+     * @throws IOException if an io exception occures.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!finished) {
+                finish();
+            }
+        } finally {
+            closed = true;
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ArchiveEntry createArchiveEntry(File inputFile, String entryName) throws IOException {
+        if (finished) {
+            throw new IOException("Stream has already been finished");
+        }
+        return new TarArchiveEntry(inputFile, entryName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Deprecated
+    @Override
+    public int getCount() {
+        return (int) bytesWritten;
+    }
+
+    private void checkLength(String fieldName, String name) throws IOException {
+        if (name != null && encoding.encode(name).limit() >= TarConstants.NAMELEN) {
+            throw new RuntimeException(fieldName + " '" + name + "' is too long ( > " + TarConstants.NAMELEN
+                    + " bytes)");
+        }
+    }
+
+    private void checkRemaining(long length) {
+        if (currentEntry == null) {
+            throw new IllegalStateException("No current tar entry");
+        }
+        if (currentBytes + length > currentSize) {
+            throw new IllegalStateException("request to write '" + length + "' bytes exceeds size in header of '"
+                    + currentSize + "' bytes for entry '" + currentEntry.getName() + "'");
+        }
+    }
+
+    /**
+     * Writes zeros up to the next multiple of the given size.
+     */
+    private void pad(int size) throws IOException {
+        int remainder = (int) (bytesWritten % size);
+        if (remainder != 0) {
+            write(ByteBuffer.allocate(size - remainder));
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        bytesWritten += data.remaining();
+        if (data.remaining() > buffer.remaining()) {
+            flushBuffer();
+            if (data.remaining() > buffer.capacity()) {
+                writeFully(data);
+                return;
+            }
+        }
+        buffer.put(data);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
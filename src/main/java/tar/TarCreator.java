@@ -1,27 +1,324 @@
 package tar;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.*;
 import util.tar.AbstractArchiveCreator;
+import util.tar.ArchiveIndex;
+import util.tar.Compression;
+import util.tar.ITransferableOutput;
+import util.tar.SparseFileMap;
 
 /**
  * Helper class to create in directory tar archive.
  */
-public class TarCreator extends AbstractArchiveCreator<TarArchiveOutputStream, TarArchiveEntry> {
+public class TarCreator extends AbstractArchiveCreator<ArchiveOutputStream, TarArchiveEntry> {
+
+    /**
+     * Size under which files are never scanned for holes in the sparse mode.
+     */
+    public static final long MIN_SPARSE_SIZE = 64 * 1024;
+
+    /**
+     * Whether entry content is transferred from file channels into the archive channel.
+     */
+    private boolean zeroCopy;
+
+    /**
+     * Whether files with holes are archived as sparse entries.
+     */
+    private boolean sparse;
 
     public TarCreator(File archiveFile) {
         super(archiveFile);
     }
 
+    /**
+     * Enables the zero-copy mode: the archive is written through a {@link TarChannelOutputStream} and file content is
+     * moved with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so it never
+     * enters the java heap.
+     *
+     * @param zeroCopy <code>true</code> to enable the zero-copy mode.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Enables the sparse mode: regular files of at least {@link #MIN_SPARSE_SIZE} bytes in which a few probed blocks
+     * are zeros, see {@link SparseFileMap#mayHaveHoles(File)}, are scanned for blocks of zeros and the files with
+     * holes are archived as GNU sparse entries, which only hold the data segments. The archive is written through a
+     * {@link TarChannelOutputStream} as in the zero-copy mode.
+     *
+     * @param sparse <code>true</code> to enable the sparse mode.
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
     @Override
     protected TarArchiveEntry createArchiveEntry(String name, File file) {
         TarArchiveEntry entry = new TarArchiveEntry(name);
-        entry.setSize(file.length());
+        if (!file.isDirectory()) {
+            entry.setSize(file.length());
+        }
+        return entry;
+    }
+
+    @Override
+    protected TarArchiveEntry createArchiveEntry(String name, File file, BasicFileAttributes attributes)
+            throws IOException {
+        TarArchiveEntry entry = null;
+        if (sparse && attributes.isRegularFile() && attributes.size() >= MIN_SPARSE_SIZE
+                && SparseFileMap.mayHaveHoles(file)) {
+            SparseFileMap map = SparseFileMap.scan(file);
+            if (map.hasHoles()) {
+                entry = new TarSparseEntry(name, map);
+            }
+        }
+        if (entry == null) {
+            entry = new TarArchiveEntry(name);
+        }
+        if (!attributes.isDirectory() && !(entry instanceof TarSparseEntry)) {
+            entry.setSize(attributes.size());
+        }
+        entry.setModTime(attributes.lastModifiedTime().toMillis());
+        return entry;
+    }
+
+    @Override
+    protected TarArchiveEntry createArchiveEntry(String name, long size, int mode, long lastModified) {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~07777 | mode & 07777);
+        entry.setSize(size);
+        entry.setModTime(lastModified);
+        return entry;
+    }
+
+    /**
+     * Writes the data segments of sparse entries, the whole file otherwise.
+     */
+    @Override
+    protected void writeContent(ArchiveOutputStream outStream, TarArchiveEntry entry, File file) throws IOException {
+        if (!(entry instanceof TarSparseEntry)) {
+            super.writeContent(outStream, entry, file);
+            return;
+        }
+
+        SparseFileMap map = ((TarSparseEntry) entry).getMap();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            for (int segment = 0; segment < map.getSegmentCount(); segment++) {
+                ((ITransferableOutput) outStream).transferFrom(channel, map.getOffset(segment),
+                        map.getLength(segment));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    protected boolean isStoredAsIs(TarArchiveEntry entry) {
+        return !(entry instanceof TarSparseEntry) && !entry.isLink() && !entry.isSymbolicLink();
+    }
+
+    @Override
+    protected String getLinkTarget(TarArchiveEntry entry) {
+        return entry.isLink() ? entry.getLinkName() : null;
+    }
+
+    @Override
+    protected TarArchiveEntry createLinkEntry(String name, String target, BasicFileAttributes attributes) {
+        TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_LINK);
+        entry.setLinkName(target);
+        entry.setModTime(attributes.lastModifiedTime().toMillis());
         return entry;
     }
 
     @Override
-    protected TarArchiveOutputStream createArchiveOutputStream(BufferedOutputStream stream) {
+    protected TarArchiveEntry createSymbolicLinkEntry(String name, String target, BasicFileAttributes attributes) {
+        TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+        entry.setLinkName(target);
+        entry.setModTime(attributes.lastModifiedTime().toMillis());
+        return entry;
+    }
+
+    @Override
+    protected ArchiveOutputStream createArchiveOutputStream(BufferedOutputStream stream) {
         return new TarArchiveOutputStream(stream);
     }
+
+    @Override
+    protected ArchiveOutputStream openArchiveOutputStream() throws IOException {
+        if (!zeroCopy && !sparse || getCompression() != Compression.NONE) {
+            return super.openArchiveOutputStream();
+        }
+        return new TarChannelOutputStream(FileChannel.open(getArchiveFile().toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * In the zero-copy and sparse modes, writes through a {@link TarChannelOutputStream}. File content is still
+     * transferred from its channel when the archive is compressed, into the compression thread.
+     */
+    @Override
+    protected ArchiveOutputStream openArchiveOutputStream(OutputStream target) throws IOException {
+        if (!zeroCopy && !sparse) {
+            return super.openArchiveOutputStream(target);
+        }
+        return new TarChannelOutputStream(Channels.newChannel(compress(target)));
+    }
+
+    /**
+     * In the zero-copy and sparse modes, file content is transferred straight into the given channel when the
+     * archive is not compressed, so that the kernel copies it into a socket or a file channel.
+     */
+    @Override
+    protected ArchiveOutputStream openArchiveOutputStream(WritableByteChannel target) throws IOException {
+        if (!zeroCopy && !sparse || getCompression() != Compression.NONE) {
+            return super.openArchiveOutputStream(target);
+        }
+        return new TarChannelOutputStream(target, 0, false);
+    }
+
+    /**
+     * Opens the archive channel positioned over the end of archive records, which are only overwritten by the new
+     * entries and cut once the archive is finished. The end of the archive is taken from the index when it is known,
+     * otherwise it is found by scanning the entry headers. Appended content is always transferred as in the zero-copy
+     * mode.
+     */
+    @Override
+    protected ArchiveOutputStream openAppendOutputStream(ArchiveIndex index) throws IOException {
+        boolean created = !getArchiveFile().exists();
+        FileChannel channel = FileChannel.open(getArchiveFile().toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = findEnd(channel, index);
+            long length = channel.size();
+            channel.position(end);
+            return new AppendOutputStream(channel, end, length, created ? getArchiveFile() : null);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Restores the end of archive records overwritten by the failed append, or removes the archive it created.
+     */
+    @Override
+    protected void abortAppend(ArchiveOutputStream outStream) throws IOException {
+        if (outStream instanceof AppendOutputStream) {
+            ((AppendOutputStream) outStream).abort();
+        } else {
+            super.abortAppend(outStream);
+        }
+    }
+
+    /**
+     * Returns the offset of the end of archive records, adding the scanned entries to the given index if it is empty.
+     */
+    private static long findEnd(FileChannel channel, ArchiveIndex index) throws IOException {
+        List<ArchiveIndex.Entry> entries = index != null ? index.getEntries()
+                : Collections.<ArchiveIndex.Entry>emptyList();
+        if (!entries.isEmpty()) {
+            ArchiveIndex.Entry last = entries.get(entries.size() - 1);
+            // A hard link is located at the content of its target, before its own header
+            if (last.getDataOffset() > last.getHeaderOffset()) {
+                return last.getDataOffset() + TarEntryScanner.padded(last.getSize());
+            }
+        }
+
+        boolean fillIndex = index != null && entries.isEmpty();
+        TarEntryScanner scanner = new TarEntryScanner(channel);
+        for (TarArchiveEntry entry = scanner.getNextEntry(); entry != null; entry = scanner.getNextEntry()) {
+            if (fillIndex && entry.isLink()) {
+                index.addLink(entry.getName(), scanner.getHeaderOffset(), entry.getLinkName(),
+                        entry.getLastModifiedDate().getTime());
+            } else if (fillIndex) {
+                boolean stored = entry.isDirectory()
+                        || entry.isFile() && !entry.isSymbolicLink() && !entry.isGNUSparse();
+                index.add(new ArchiveIndex.Entry(entry.getName(), scanner.getHeaderOffset(),
+                        stored ? scanner.getDataOffset() : -1, scanner.getDataSize(),
+                        entry.getLastModifiedDate().getTime(), entry.isDirectory()));
+            }
+        }
+        return scanner.getEndOffset();
+    }
+
+    /**
+     * Stream appending to an archive file, which keeps the end of the archive it started from so that a failed append
+     * can be undone.
+     */
+    private static class AppendOutputStream extends TarChannelOutputStream {
+
+        private final FileChannel channel;
+
+        /**
+         * Offset of the end of archive records the new entries are written over.
+         */
+        private final long end;
+
+        /**
+         * Length of the archive file before the append.
+         */
+        private final long length;
+
+        /**
+         * The archive file if the append created it, <code>null</code> otherwise.
+         */
+        private final File created;
+
+        AppendOutputStream(FileChannel channel, long end, long length, File created) {
+            super(channel, end);
+            this.channel = channel;
+            this.end = end;
+            this.length = length;
+            this.created = created;
+        }
+
+        /**
+         * Cuts what followed the former end of archive records once the new ones are written.
+         *
+         * @throws IOException if an io exception occures.
+         */
+        @Override
+        public void finish() throws IOException {
+            super.finish();
+            channel.truncate(getBytesWritten());
+        }
+
+        /**
+         * Writes the end of archive records back over the new entries, without finishing the archive.
+         *
+         * @throws IOException if an io exception occures.
+         */
+        void abort() throws IOException {
+            try {
+                channel.truncate(end);
+                ByteBuffer zeros = ByteBuffer.allocate(TarConstants.DEFAULT_RCDSIZE);
+                for (long position = end; position < length; position += zeros.capacity()) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), length - position));
+                    while (zeros.hasRemaining()) {
+                        channel.write(zeros, position + zeros.position());
+                    }
+                }
+            } finally {
+                channel.close();
+                if (created != null) {
+                    created.delete();
+                }
+            }
+        }
+    }
 }
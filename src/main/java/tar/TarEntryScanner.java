@@ -0,0 +1,390 @@
+package tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import util.tar.IArchiveScanner;
+import util.tar.SparseFileMap;
+
+/**
+ * Walks the entries of a tar archive stored in a file channel. Headers are read with positional reads and the content
+ * of the entries is skipped by position arithmetic, so scanning an archive costs one read per header whatever the
+ * size of the entries.
+ *
+ * <p>GNU long names and links, pax extended headers and old GNU sparse headers are resolved like
+ * {@link org.apache.commons.compress.archivers.tar.TarArchiveInputStream} does, and the data segments of sparse
+ * entries are available from {@link #getSparseMap()}. Sparse files described by pax extended headers are returned as
+ * {@link TarSparseEntry}, whose data offset and size skip the map of the format 1.0. Directories, links and special
+ * files never have content, as required by POSIX, whatever their size field says.
+ */
+public class TarEntryScanner implements IArchiveScanner {
+
+    private static final int RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileChannel channel;
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    private TarArchiveEntry currentEntry;
+
+    private long position;
+
+    private long headerOffset;
+
+    private long dataOffset;
+
+    private long dataSize;
+
+    private SparseFileMap sparseMap;
+
+    /**
+     * Creates a new scanner starting at the beginning of the channel.
+     *
+     * @param channel the channel holding the archive.
+     */
+    public TarEntryScanner(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TarArchiveEntry getNextEntry() throws IOException {
+        if (currentEntry != null) {
+            position = dataOffset + padded(dataSize);
+            currentEntry = null;
+        }
+        headerOffset = position;
+        sparseMap = null;
+
+        String longName = null;
+        String longLinkName = null;
+        Map<String, String> paxHeaders = new HashMap<String, String>();
+
+        while (true) {
+            byte[] header = readRecord(position);
+            if (header == null) {
+                return null;
+            }
+            boolean paxSparse = TarSparseEntry.isPaxSparse(paxHeaders);
+            if (paxSparse) {
+                sparseMap = TarSparseEntry.createMap(paxHeaders);
+            }
+            TarArchiveEntry entry = parseHeader(header, paxSparse ? sparseMap : null);
+            position += RECORD_SIZE;
+
+            if (entry.isGNULongNameEntry()) {
+                longName = readName(entry.getSize());
+            } else if (entry.isGNULongLinkEntry()) {
+                longLinkName = readName(entry.getSize());
+            } else if (entry.isPaxHeader()) {
+                paxHeaders.putAll(parsePaxHeaders(readData(entry.getSize())));
+            } else if (entry.isGlobalPaxHeader()) {
+                // Global headers only carry defaults we do not use
+                position += padded(entry.getSize());
+            } else {
+                if (entry.isGNUSparse() && !paxSparse) {
+                    sparseMap = readSparseMap(header);
+                }
+                if (longName != null) {
+                    entry.setName(longName);
+                }
+                if (longLinkName != null) {
+                    entry.setLinkName(longLinkName);
+                }
+                applyPaxHeaders(entry, paxHeaders);
+
+                currentEntry = entry;
+                dataOffset = position;
+                dataSize = getStoredSize(entry);
+                if (paxSparse && TarSparseEntry.hasDataMap(paxHeaders)) {
+                    long mapSize = TarSparseEntry.readDataMap(new RecordInputStream(dataOffset, dataSize), sparseMap);
+                    dataOffset += mapSize;
+                    dataSize -= mapSize;
+                    entry.setSize(dataSize);
+                }
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHeaderOffset() {
+        return headerOffset;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SparseFileMap getSparseMap() {
+        return sparseMap;
+    }
+
+    /**
+     * Returns the offset following the last entry read, where the end of archive records start once the scanner
+     * returned <code>null</code>.
+     *
+     * @return the end offset of the entries read so far.
+     */
+    public long getEndOffset() {
+        return currentEntry != null ? dataOffset + padded(dataSize) : headerOffset;
+    }
+
+    /**
+     * Rounds the given size up to a whole number of records.
+     *
+     * @param size the size.
+     * @return the padded size.
+     */
+    public static long padded(long size) {
+        return (size + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * Returns the number of content bytes following the header of the given entry.
+     *
+     * @param entry the entry.
+     * @return the stored size.
+     */
+    static long getStoredSize(TarArchiveEntry entry) {
+        if (entry.isDirectory() || entry.isLink() || entry.isSymbolicLink() || entry.isCharacterDevice()
+                || entry.isBlockDevice() || entry.isFIFO()) {
+            return 0;
+        }
+        return entry.getSize();
+    }
+
+    /**
+     * Parses the records of a pax extended header. The values of the keys repeated for each segment of a GNU sparse
+     * file in the format 0.0 are joined by commas, in order.
+     *
+     * @param data the extended header content.
+     * @return the headers by key.
+     * @throws IOException if the header is malformed.
+     */
+    static Map<String, String> parsePaxHeaders(byte[] data) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        int offset = 0;
+        while (offset < data.length && data[offset] != 0) {
+            int space = offset;
+            int length = 0;
+            while (space < data.length && data[space] != ' ') {
+                length = length * 10 + (data[space] - '0');
+                space++;
+            }
+            int equals = space + 1;
+            while (equals < offset + length && data[equals] != '=') {
+                equals++;
+            }
+            if (length <= 0 || offset + length > data.length || equals >= offset + length) {
+                throw new IOException("Malformed pax extended header");
+            }
+            String key = new String(data, space + 1, equals - space - 1, UTF_8);
+            // The record ends with a new line
+            String value = new String(data, equals + 1, offset + length - equals - 2, UTF_8);
+            String previous = headers.get(key);
+            if (previous != null && (TarSparseEntry.PAX_SPARSE_OFFSET.equals(key)
+                    || TarSparseEntry.PAX_SPARSE_NUMBYTES.equals(key))) {
+                value = previous + "," + value;
+            }
+            headers.put(key, value);
+            offset += length;
+        }
+        return headers;
+    }
+
+    static void applyPaxHeaders(TarArchiveEntry entry, Map<String, String> headers) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String key = header.getKey();
+            String value = header.getValue();
+            if ("path".equals(key)) {
+                entry.setName(value);
+            } else if ("linkpath".equals(key)) {
+                entry.setLinkName(value);
+            } else if ("size".equals(key)) {
+                entry.setSize(Long.parseLong(value));
+            } else if ("mtime".equals(key)) {
+                entry.setModTime((long) (Double.parseDouble(value) * 1000));
+            } else if ("uid".equals(key)) {
+                entry.setUserId(Integer.parseInt(value));
+            } else if ("gid".equals(key)) {
+                entry.setGroupId(Integer.parseInt(value));
+            } else if ("uname".equals(key)) {
+                entry.setUserName(value);
+            } else if ("gname".equals(key)) {
+                entry.setGroupName(value);
+            }
+        }
+        // Sparse files of the formats 0.1 and 1.0 are stored under a generated path
+        String sparseName = TarSparseEntry.getName(headers);
+        if (sparseName != null) {
+            entry.setName(sparseName);
+        }
+    }
+
+    /**
+     * Parses an entry header.
+     *
+     * @param header the header record.
+     * @param paxSparseMap the map read from the pax extended headers of a sparse file, <code>null</code> otherwise.
+     * @return the entry, a {@link TarSparseEntry} if a map is given.
+     * @throws IOException if the header is malformed.
+     */
+    static TarArchiveEntry parseHeader(byte[] header, SparseFileMap paxSparseMap) throws IOException {
+        try {
+            return paxSparseMap != null ? new TarSparseEntry(header, paxSparseMap) : new TarArchiveEntry(header);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Error detected parsing the header", e);
+        }
+    }
+
+    static boolean isZero(byte[] record) {
+        for (byte b : record) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the data segments of an old GNU sparse entry from its header and from the extension headers following it.
+     */
+    private SparseFileMap readSparseMap(byte[] header) throws IOException {
+        SparseFileMap map = TarSparseEntry.createMap(header);
+        boolean extended = TarSparseEntry.parseHeader(header, map);
+        while (extended) {
+            byte[] extension = readRecord(position);
+            if (extension == null) {
+                throw new EOFException("Unexpected end of archive in sparse headers");
+            }
+            position += RECORD_SIZE;
+            extended = TarSparseEntry.parseExtension(extension, map);
+        }
+        return map;
+    }
+
+    /**
+     * Reads the name stored in the content of a GNU long name or long link entry.
+     */
+    private String readName(long size) throws IOException {
+        byte[] data = readData(size);
+        int length = data.length;
+        while (length > 0 && data[length - 1] == 0) {
+            length--;
+        }
+        return new String(data, 0, length, Charset.defaultCharset());
+    }
+
+    /**
+     * Reads the content of a meta entry and moves past it.
+     */
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Header entry too large: " + size);
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        readFully(data, position);
+        position += padded(size);
+        return data.array();
+    }
+
+    /**
+     * Reads the record at the given position.
+     *
+     * @return the record, <code>null</code> at the end of the archive.
+     */
+    private byte[] readRecord(long offset) throws IOException {
+        record.clear();
+        while (record.hasRemaining()) {
+            if (read(record, offset + record.position()) < 0) {
+                return null;
+            }
+        }
+        byte[] header = record.array().clone();
+        return isZero(header) ? null : header;
+    }
+
+    /**
+     * Reads bytes of the archive at the given offset into the buffer.
+     *
+     * @param buffer the target buffer.
+     * @param offset the archive offset of the first byte.
+     * @return the number of bytes read, -1 at the end of the archive.
+     * @throws IOException if an io exception occures.
+     */
+    protected int read(ByteBuffer buffer, long offset) throws IOException {
+        return channel.read(buffer, offset);
+    }
+
+    /**
+     * Stream over the content of an entry, read a record at a time.
+     */
+    private class RecordInputStream extends InputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+        private long offset;
+
+        private long remaining;
+
+        RecordInputStream(long offset, long size) {
+            this.offset = offset;
+            this.remaining = size;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(RECORD_SIZE, remaining));
+                readFully(buffer, offset);
+                buffer.flip();
+                offset += buffer.limit();
+                remaining -= buffer.limit();
+            }
+            return buffer.get() & 0xff;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of archive at " + (offset + buffer.position()));
+            }
+        }
+    }
+}
@@ -1,21 +1,75 @@
 package tar;
 
 import java.io.*;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import util.tar.AbstractArchiveExtractor;
+import util.tar.ArchiveManifest;
+import util.tar.SparseFileMap;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
 /**
  * Helper class to extract in directory tar archive.
  */
-public class TarExtractor extends AbstractArchiveExtractor<TarArchiveInputStream> {
+public class TarExtractor extends AbstractArchiveExtractor<TarSparseInputStream> {
 
     public TarExtractor(Resource archiveFile) throws FileNotFoundException {
         super(archiveFile);
     }
 
+    /**
+     * Restores a chain of incremental archives: the full archive, then each increment in order.
+     *
+     * @param destination the destination the files will be restored to.
+     * @param archives the full archive followed by its increments.
+     * @throws IOException if an archive is not an increment of the previous one, or if an io exception occures.
+     */
+    public static void restoreChain(File destination, File... archives) throws IOException {
+        for (int i = 1; i < archives.length; i++) {
+            ArchiveManifest manifest = ArchiveManifest.load(archives[i]);
+            if (manifest == null || !archives[i - 1].getName().equals(manifest.getBaseName())) {
+                throw new IOException(archives[i] + " is not an increment of " + archives[i - 1]);
+            }
+        }
+        for (File archive : archives) {
+            new TarExtractor(new FileSystemResource(archive)).restore(destination);
+        }
+    }
+
+    @Override
+    protected TarSparseInputStream createArchiveInputStream(InputStream fileInputStream) {
+        return new TarSparseInputStream(fileInputStream);
+    }
+
+    @Override
+    protected SparseFileMap getSparseMap(TarSparseInputStream archiveInputStream) {
+        return archiveInputStream.getSparseMap();
+    }
+
+    @Override
+    protected boolean isStoredEntry(ArchiveEntry entry) {
+        TarArchiveEntry tarEntry = (TarArchiveEntry) entry;
+        // Links are files with no content for commons-compress
+        return tarEntry.isFile() && !tarEntry.isLink() && !tarEntry.isSymbolicLink() && !tarEntry.isGNUSparse();
+    }
+
+    @Override
+    protected String getLinkTarget(ArchiveEntry entry) {
+        TarArchiveEntry tarEntry = (TarArchiveEntry) entry;
+        return tarEntry.isLink() ? tarEntry.getLinkName() : null;
+    }
+
+    @Override
+    protected String getSymbolicLinkTarget(ArchiveEntry entry) {
+        TarArchiveEntry tarEntry = (TarArchiveEntry) entry;
+        return tarEntry.isSymbolicLink() ? tarEntry.getLinkName() : null;
+    }
+
     @Override
-    protected TarArchiveInputStream createArchiveInputStream(InputStream fileInputStream) {
-        return new TarArchiveInputStream(fileInputStream);
+    protected TarEntryScanner openScanner(FileChannel channel) {
+        return new TarEntryScanner(channel);
     }
 }
@@ -0,0 +1,323 @@
+package tar;
+
+import java.io.*;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import util.tar.SparseFileMap;
+
+/**
+ * Tar entry of a sparse file, written in the old GNU sparse format: the header lists the first data segments of the
+ * file, extension headers follow with the other ones, and the content of the entry is the data segments put end to
+ * end. GNU tar, bsdtar and {@link TarEntryScanner} restore the holes.
+ *
+ * <p>Entries read from an archive are also sparse when pax extended headers hold a GNU sparse map, in any of the
+ * formats 0.0, 0.1 and 1.0 written by GNU tar.
+ */
+public class TarSparseEntry extends TarArchiveEntry {
+
+    private static final int RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+
+    /**
+     * Offset of the sparse segments within the old GNU header.
+     */
+    private static final int SPARSE_OFFSET = 386;
+
+    private static final int HEADER_SEGMENTS = 4;
+
+    private static final int IS_EXTENDED_OFFSET = 482;
+
+    private static final int REAL_SIZE_OFFSET = 483;
+
+    private static final int EXTENSION_SEGMENTS = 21;
+
+    private static final int EXTENSION_IS_EXTENDED_OFFSET = 504;
+
+    /**
+     * Length of the offset and of the length fields of a segment.
+     */
+    private static final int FIELD_LENGTH = 12;
+
+    /**
+     * Prefix of the pax extended header keys of GNU sparse files.
+     */
+    static final String PAX_SPARSE_PREFIX = "GNU.sparse.";
+
+    /**
+     * Pax keys of the format 0.0, which repeats them once per segment.
+     */
+    static final String PAX_SPARSE_OFFSET = PAX_SPARSE_PREFIX + "offset";
+
+    static final String PAX_SPARSE_NUMBYTES = PAX_SPARSE_PREFIX + "numbytes";
+
+    private static final String PAX_SPARSE_MAP = PAX_SPARSE_PREFIX + "map";
+
+    private static final String PAX_SPARSE_SIZE = PAX_SPARSE_PREFIX + "size";
+
+    private static final String PAX_SPARSE_REALSIZE = PAX_SPARSE_PREFIX + "realsize";
+
+    private static final String PAX_SPARSE_NAME = PAX_SPARSE_PREFIX + "name";
+
+    private static final String PAX_SPARSE_MAJOR = PAX_SPARSE_PREFIX + "major";
+
+    private final SparseFileMap map;
+
+    /**
+     * Creates a new sparse entry.
+     *
+     * @param name the entry name.
+     * @param map the data segments of the file.
+     */
+    public TarSparseEntry(String name, SparseFileMap map) {
+        super(name, TarConstants.LF_GNUTYPE_SPARSE);
+        this.map = map;
+        setSize(map.getStoredSize());
+    }
+
+    /**
+     * Creates a sparse entry from the header of an entry whose pax extended headers hold a GNU sparse map.
+     *
+     * @param header the entry header.
+     * @param map the data segments of the file.
+     */
+    TarSparseEntry(byte[] header, SparseFileMap map) {
+        super(header);
+        this.map = map;
+    }
+
+    public SparseFileMap getMap() {
+        return map;
+    }
+
+    /**
+     * @return <code>true</code>, whatever the type flag of the header the entry was read from.
+     */
+    @Override
+    public boolean isGNUSparse() {
+        return true;
+    }
+
+    @Override
+    public long getRealSize() {
+        return map.getRealSize();
+    }
+
+    /**
+     * Formats the header of the entry followed by its extension headers.
+     *
+     * @param encoding the encoding of the names.
+     * @return the header records.
+     * @throws IOException if the name cannot be encoded.
+     */
+    byte[] formatHeaders(ZipEncoding encoding) throws IOException {
+        int segments = map.getSegmentCount();
+        int extensions = segments > HEADER_SEGMENTS
+                ? (segments - HEADER_SEGMENTS + EXTENSION_SEGMENTS - 1) / EXTENSION_SEGMENTS : 0;
+        byte[] records = new byte[RECORD_SIZE * (1 + extensions)];
+
+        byte[] header = new byte[RECORD_SIZE];
+        writeEntryHeader(header, encoding, true);
+        TarUtils.formatNameBytes(TarConstants.MAGIC_GNU, header, TarConstants.MAGIC_OFFSET, TarConstants.MAGICLEN);
+        TarUtils.formatNameBytes(TarConstants.VERSION_GNU_SPACE, header, TarConstants.VERSION_OFFSET,
+                TarConstants.VERSIONLEN);
+        int segment = formatSegments(header, SPARSE_OFFSET, 0, HEADER_SEGMENTS);
+        header[IS_EXTENDED_OFFSET] = (byte) (extensions > 0 ? 1 : 0);
+        TarUtils.formatLongOctalOrBinaryBytes(map.getRealSize(), header, REAL_SIZE_OFFSET, FIELD_LENGTH);
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 0; i < TarConstants.CHKSUMLEN; i++) {
+            header[TarConstants.CHKSUM_OFFSET + i] = ' ';
+        }
+        TarUtils.formatCheckSumOctalBytes(TarUtils.computeCheckSum(header), header, TarConstants.CHKSUM_OFFSET,
+                TarConstants.CHKSUMLEN);
+        System.arraycopy(header, 0, records, 0, RECORD_SIZE);
+
+        for (int extension = 1; extension <= extensions; extension++) {
+            int offset = extension * RECORD_SIZE;
+            segment = formatSegments(records, offset, segment, EXTENSION_SEGMENTS);
+            records[offset + EXTENSION_IS_EXTENDED_OFFSET] = (byte) (extension < extensions ? 1 : 0);
+        }
+        return records;
+    }
+
+    private int formatSegments(byte[] records, int offset, int segment, int count) {
+        for (int i = 0; i < count && segment < map.getSegmentCount(); i++, segment++) {
+            int fieldOffset = offset + i * 2 * FIELD_LENGTH;
+            TarUtils.formatLongOctalOrBinaryBytes(map.getOffset(segment), records, fieldOffset, FIELD_LENGTH);
+            TarUtils.formatLongOctalOrBinaryBytes(map.getLength(segment), records, fieldOffset + FIELD_LENGTH,
+                    FIELD_LENGTH);
+        }
+        return segment;
+    }
+
+    /**
+     * Reads the real size of a sparse file from its old GNU header.
+     *
+     * @param header the entry header.
+     * @return the map without segments.
+     */
+    static SparseFileMap createMap(byte[] header) {
+        return new SparseFileMap(TarUtils.parseOctalOrBinary(header, REAL_SIZE_OFFSET, FIELD_LENGTH));
+    }
+
+    /**
+     * Reads the segments of the entry header.
+     *
+     * @param header the entry header.
+     * @param map the map to complete.
+     * @return <code>true</code> if extension headers follow.
+     */
+    static boolean parseHeader(byte[] header, SparseFileMap map) {
+        parseSegments(header, SPARSE_OFFSET, HEADER_SEGMENTS, map);
+        return header[IS_EXTENDED_OFFSET] != 0;
+    }
+
+    /**
+     * Reads the segments of an extension header.
+     *
+     * @param extension the extension header.
+     * @param map the map to complete.
+     * @return <code>true</code> if other extension headers follow.
+     */
+    static boolean parseExtension(byte[] extension, SparseFileMap map) {
+        parseSegments(extension, 0, EXTENSION_SEGMENTS, map);
+        return extension[EXTENSION_IS_EXTENDED_OFFSET] != 0;
+    }
+
+    private static void parseSegments(byte[] record, int offset, int count, SparseFileMap map) {
+        for (int i = 0; i < count; i++) {
+            int fieldOffset = offset + i * 2 * FIELD_LENGTH;
+            // Unused segments are left empty
+            if (record[fieldOffset] == 0) {
+                return;
+            }
+            map.add(TarUtils.parseOctalOrBinary(record, fieldOffset, FIELD_LENGTH),
+                    TarUtils.parseOctalOrBinary(record, fieldOffset + FIELD_LENGTH, FIELD_LENGTH));
+        }
+    }
+
+    /**
+     * @param headers the pax extended headers of an entry.
+     * @return <code>true</code> if they describe a GNU sparse file.
+     */
+    static boolean isPaxSparse(Map<String, String> headers) {
+        for (String key : headers.keySet()) {
+            if (key.startsWith(PAX_SPARSE_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the real size and, in the formats 0.0 and 0.1, the segments of a sparse file from its pax extended
+     * headers. The segments of the format 1.0 are read from the content of the entry with
+     * {@link #readDataMap(InputStream, SparseFileMap)}.
+     *
+     * @param headers the pax extended headers, the values of the repeated keys of the format 0.0 joined by commas.
+     * @return the map.
+     * @throws IOException if the headers are malformed.
+     */
+    static SparseFileMap createMap(Map<String, String> headers) throws IOException {
+        String realSize = headers.containsKey(PAX_SPARSE_REALSIZE) ? headers.get(PAX_SPARSE_REALSIZE)
+                : headers.get(PAX_SPARSE_SIZE);
+        if (realSize == null) {
+            throw new IOException("Real size of the pax sparse entry not found");
+        }
+        SparseFileMap map = new SparseFileMap(parseNumber(realSize));
+        if (hasDataMap(headers)) {
+            return map;
+        }
+
+        String[] offsets;
+        String[] lengths;
+        if (headers.containsKey(PAX_SPARSE_MAP)) {
+            String[] fields = headers.get(PAX_SPARSE_MAP).split(",");
+            if (fields.length % 2 != 0) {
+                throw new IOException("Malformed pax sparse map");
+            }
+            offsets = new String[fields.length / 2];
+            lengths = new String[fields.length / 2];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = fields[2 * i];
+                lengths[i] = fields[2 * i + 1];
+            }
+        } else if (headers.containsKey(PAX_SPARSE_OFFSET) && headers.containsKey(PAX_SPARSE_NUMBYTES)) {
+            offsets = headers.get(PAX_SPARSE_OFFSET).split(",");
+            lengths = headers.get(PAX_SPARSE_NUMBYTES).split(",");
+        } else {
+            throw new IOException("Unsupported pax sparse entry");
+        }
+        if (offsets.length != lengths.length) {
+            throw new IOException("Malformed pax sparse map");
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            map.add(parseNumber(offsets[i]), parseNumber(lengths[i]));
+        }
+        return map;
+    }
+
+    /**
+     * @param headers the pax extended headers of a sparse file.
+     * @return <code>true</code> if the segments are listed at the beginning of the content, as in the format 1.0.
+     */
+    static boolean hasDataMap(Map<String, String> headers) {
+        return "1".equals(headers.get(PAX_SPARSE_MAJOR));
+    }
+
+    /**
+     * @param headers the pax extended headers of a sparse file.
+     * @return the name of the file, <code>null</code> if the path header already holds it.
+     */
+    static String getName(Map<String, String> headers) {
+        return headers.get(PAX_SPARSE_NAME);
+    }
+
+    /**
+     * Reads the segments listed at the beginning of the content of a format 1.0 entry: the number of segments then
+     * the offset and the length of each one, as decimal lines padded with zeros to a whole number of records.
+     *
+     * @param in the content of the entry.
+     * @param map the map to complete.
+     * @return the number of bytes read, padding included.
+     * @throws IOException if the map is malformed.
+     */
+    static long readDataMap(InputStream in, SparseFileMap map) throws IOException {
+        long[] read = new long[1];
+        long segments = readNumber(in, read);
+        for (long segment = 0; segment < segments; segment++) {
+            map.add(readNumber(in, read), readNumber(in, read));
+        }
+        for (long padding = TarEntryScanner.padded(read[0]) - read[0]; padding > 0; padding--) {
+            if (in.read() < 0) {
+                throw new EOFException("Unexpected end of archive in sparse map");
+            }
+            read[0]++;
+        }
+        return read[0];
+    }
+
+    private static long readNumber(InputStream in, long[] read) throws IOException {
+        StringBuilder number = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException("Unexpected end of archive in sparse map");
+            }
+            number.append((char) b);
+            read[0]++;
+        }
+        read[0]++;
+        return parseNumber(number.toString());
+    }
+
+    private static long parseNumber(String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed pax sparse map: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package tar;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import util.tar.SparseFileMap;
+
+/**
+ * Tar input stream keeping the data segments of old GNU sparse entries, which {@link TarArchiveInputStream} reads
+ * but does not expose, and of the sparse files described by pax extended headers, which it reads as regular files.
+ * The content read for such an entry is its data segments put end to end, in the order of {@link #getSparseMap()}.
+ */
+public class TarSparseInputStream extends TarArchiveInputStream {
+
+    /**
+     * Offset of the type flag within a header.
+     */
+    private static final int TYPE_FLAG_OFFSET = TarConstants.NAMELEN + TarConstants.MODELEN + TarConstants.UIDLEN
+            + TarConstants.GIDLEN + TarConstants.CHKSUMLEN + TarConstants.SIZELEN + TarConstants.MODTIMELEN;
+
+    /**
+     * Records read for the current entry, ending with the sparse header and its extension headers.
+     */
+    private final List<byte[]> records = new ArrayList<byte[]>();
+
+    /**
+     * Content of the pax extended headers read for the current entry.
+     */
+    private final ByteArrayOutputStream paxData = new ByteArrayOutputStream();
+
+    /**
+     * Number of calls to {@link #getNextTarEntry()} in progress, the entries following meta entries being read by
+     * nested calls.
+     */
+    private int depth;
+
+    private SparseFileMap sparseMap;
+
+    public TarSparseInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TarArchiveEntry getNextTarEntry() throws IOException {
+        if (depth == 0) {
+            records.clear();
+            paxData.reset();
+            sparseMap = null;
+        }
+        TarArchiveEntry entry;
+        depth++;
+        try {
+            entry = super.getNextTarEntry();
+        } finally {
+            depth--;
+        }
+        // The outermost call parses the map from everything read for the entry
+        if (depth > 0 || entry == null) {
+            return entry;
+        }
+        try {
+            Map<String, String> paxHeaders = paxData.size() > 0
+                    ? TarEntryScanner.parsePaxHeaders(paxData.toByteArray()) : null;
+            if (paxHeaders != null && TarSparseEntry.isPaxSparse(paxHeaders)) {
+                sparseMap = TarSparseEntry.createMap(paxHeaders);
+                String name = TarSparseEntry.getName(paxHeaders);
+                if (name != null) {
+                    entry.setName(name);
+                }
+                if (TarSparseEntry.hasDataMap(paxHeaders)) {
+                    long mapSize = TarSparseEntry.readDataMap(this, sparseMap);
+                    entry.setSize(entry.getSize() - mapSize);
+                }
+            } else if (entry.isGNUSparse()) {
+                sparseMap = parseSparseMap();
+            }
+        } finally {
+            records.clear();
+            paxData.reset();
+        }
+        return entry;
+    }
+
+    /**
+     * @return the data segments of the current entry, <code>null</code> if it is not a sparse entry.
+     */
+    public SparseFileMap getSparseMap() {
+        return sparseMap;
+    }
+
+    /**
+     * Sparse entries are only read through their map, like {@link TarArchiveInputStream} requires for old GNU sparse
+     * entries.
+     */
+    @Override
+    public boolean canReadEntryData(ArchiveEntry entry) {
+        return sparseMap == null && super.canReadEntryData(entry);
+    }
+
+    /**
+     * Keeps the content of the pax extended headers, which {@link TarArchiveInputStream} reads through this method.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        TarArchiveEntry current = getCurrentEntry();
+        if (read > 0 && current != null && current.isPaxHeader()) {
+            paxData.write(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    protected byte[] readRecord() throws IOException {
+        byte[] record = super.readRecord();
+        if (record != null) {
+            records.add(record);
+        }
+        return record;
+    }
+
+    /**
+     * Parses the last sparse header read and its extension headers. Extension headers only hold octal fields, so
+     * they never have the sparse type flag.
+     */
+    private SparseFileMap parseSparseMap() throws IOException {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            byte[] header = records.get(i);
+            if (header[TYPE_FLAG_OFFSET] != TarConstants.LF_GNUTYPE_SPARSE) {
+                continue;
+            }
+            SparseFileMap map = TarSparseEntry.createMap(header);
+            boolean extended = TarSparseEntry.parseHeader(header, map);
+            for (int next = i + 1; extended; next++) {
+                if (next >= records.size()) {
+                    throw new EOFException("Unexpected end of archive in sparse headers");
+                }
+                extended = TarSparseEntry.parseExtension(records.get(next), map);
+            }
+            return map;
+        }
+        throw new IOException("Sparse header not found");
+    }
+}
@@ -1,10 +1,22 @@
 package util.tar;
 
 import java.io.*;
-import java.util.zip.ZipException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import org.apache.commons.compress.archivers.*;
-import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 /**
  * Abstract ArchiveCreator to implement org.apache.commons.compress archivers.
@@ -13,11 +25,91 @@ public abstract class AbstractArchiveCreator<O extends ArchiveOutputStream, E ex
 
     private static final int BUFFER_SIZE = 2048;
 
+    /**
+     * Default amount of heap the reader threads may fill with prefetched file contents.
+     */
+    private static final long DEFAULT_PREFETCH_MEMORY = 64L * 1024 * 1024;
+
     /**
      * Archive file.
      */
     private final File archiveFile;
 
+    /**
+     * Number of threads reading upcoming files ahead of the writer, 1 disables prefetching.
+     */
+    private int readThreads = 1;
+
+    /**
+     * Maximum number of bytes held by prefetched files.
+     */
+    private long prefetchMemory = DEFAULT_PREFETCH_MEMORY;
+
+    /**
+     * Number of threads listing the walked directories, 1 walks them on the calling thread.
+     */
+    private int walkThreads = 1;
+
+    /**
+     * Whether an {@link ArchiveIndex} is written next to the archive.
+     */
+    private boolean writeIndex;
+
+    /**
+     * Whether an {@link ArchiveManifest} is written next to the archive.
+     */
+    private boolean writeManifest;
+
+    /**
+     * Archive the written archive is an increment of, <code>null</code> for a full archive.
+     */
+    private File incrementalBase;
+
+    /**
+     * Algorithm of the content digests recorded in the manifest, <code>null</code> to record none.
+     */
+    private String manifestDigest;
+
+    /**
+     * Whether duplicated contents are written once and linked.
+     */
+    private boolean deduplicate;
+
+    /**
+     * Whether symbolic links and hard links are archived as links instead of being followed.
+     */
+    private boolean preserveLinks;
+
+    /**
+     * Compression of the archive file.
+     */
+    private Compression compression = Compression.NONE;
+
+    /**
+     * Number of threads compressing gzip archives, 1 compresses on a single dedicated thread.
+     */
+    private int compressionThreads = 1;
+
+    /**
+     * Whether gzip archives are written as independent members that can be inflated in parallel.
+     */
+    private boolean independentBlocks;
+
+    /**
+     * Members of the gzip archive being written with independent blocks.
+     */
+    private GzipBlockIndex blockIndex;
+
+    /**
+     * Number of bytes of an entry of unknown length held in memory before spilling it to a temporary file.
+     */
+    private int spillThreshold = SpillBuffer.DEFAULT_THRESHOLD;
+
+    /**
+     * Directory of the spilled entries, <code>null</code> for the default temporary directory.
+     */
+    private File spillDirectory;
+
     /**
      * Create a new archive creator with the given file as backend.
      *
@@ -28,58 +120,399 @@ public abstract class AbstractArchiveCreator<O extends ArchiveOutputStream, E ex
     }
 
     /**
-     * Add the files within the given directory to the ArchiveOutputStream. This method will call itself for each
-     * subdirectory.
+     * Add the files within the given directory to the archive writer, walking its whole tree.
      *
-     * @param baseName represents the relative base name within the tar file.
-     * @param outStream the ouput stream.
+     * @param walker the tree walker.
+     * @param session the state of the archive being written.
      * @param directory the directory.
      * @throws IOException if an io exception occures.
      */
-    private void addFiles(String baseName, O outStream, File directory) throws IOException {
-        byte[] data = new byte[BUFFER_SIZE];
+    private void addFiles(FileTreeWalker walker, final WriteSession session, File directory) throws IOException {
+        walker.walk(directory.toPath(), new FileTreeWalker.Visitor() {
 
-        for (File file : directory.listFiles()) {
-            String relativeName = getRelativePath(baseName, file);
-            E entry = createArchiveEntry(relativeName, file);
-            try {
-                outStream.putArchiveEntry(entry);
-            } catch (ZipException ignore) {
-                throw ignore;
+            @Override
+            public void visit(String name, Path path, BasicFileAttributes attributes) throws IOException {
+                addFile(session, name, path.toFile(), attributes);
+            }
+        });
+    }
+
+    /**
+     * Returns whether the given regular file may have other hard links, that is whether its link count is above one
+     * or cannot be read.
+     */
+    private static boolean hasOtherLinks(File file) throws IOException {
+        Path path = file.toPath();
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            return true;
+        }
+        return ((Number) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue() > 1;
+    }
+
+    /**
+     * Add a file to the archive writer, unless it did not change since the base archive. A file already written
+     * under another name, as a hard link or as a duplicated content, is added as a link to the first entry.
+     */
+    private void addFile(WriteSession session, String name, File file, BasicFileAttributes attributes)
+            throws IOException {
+        if (session.manifest != null && !record(name, file, attributes, session.base, session.manifest)) {
+            return;
+        }
+
+        if (attributes.isSymbolicLink()) {
+            E link = createSymbolicLinkEntry(name, Files.readSymbolicLink(file.toPath()).toString(), attributes);
+            if (link != null) {
+                session.writer.add(link, null);
             }
+            return;
+        }
 
-            if (file.isDirectory()) {
-                // Add the files within the directory
-                addFiles(baseName, outStream, file);
-                continue;
+        if (attributes.isRegularFile()) {
+            String target = null;
+            Object key = attributes.fileKey();
+            if (session.linkedFiles != null && key != null && hasOtherLinks(file)) {
+                target = session.linkedFiles.get(key);
+                if (target == null) {
+                    session.linkedFiles.put(key, name);
+                }
+            }
+            if (target == null && session.deduplicator != null) {
+                target = session.deduplicator.findDuplicate(name, file, attributes.size());
+            }
+            E link = target != null ? createLinkEntry(name, target, attributes) : null;
+            if (link != null) {
+                session.writer.add(link, null);
+                return;
             }
+        }
 
-            FileInputStream fileInputStream = null;
-            BufferedInputStream origin = null;
+        E entry = createArchiveEntry(name, file, attributes);
+        session.writer.add(entry, attributes.isDirectory() ? null : file);
+    }
 
-            try {
-                fileInputStream = new FileInputStream(file);
-                origin = new BufferedInputStream(fileInputStream, BUFFER_SIZE);
-                int count;
-                while ((count = origin.read(data, 0, BUFFER_SIZE)) != -1) {
-                    outStream.write(data, 0, count);
+    /**
+     * Reads the attributes of a file given to the creator, of the link itself when links are preserved.
+     */
+    private BasicFileAttributes readAttributes(File file) throws IOException {
+        return preserveLinks ? Files.readAttributes(file.toPath(), BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS) : Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    /**
+     * Records the given file in the manifest.
+     *
+     * @return <code>true</code> if the file is new or changed since the base archive.
+     */
+    private boolean record(String name, File file, BasicFileAttributes attributes, ArchiveManifest base,
+            ArchiveManifest manifest) throws IOException {
+        boolean directory = attributes.isDirectory();
+        long size = directory ? 0 : attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        ArchiveManifest.Entry previous = base != null ? base.get(name) : null;
+        boolean sameDigests = manifestDigest != null && previous != null && previous.getDigest() != null
+                && manifestDigest.equals(base.getDigestAlgorithm());
+
+        boolean changed;
+        byte[] digest = null;
+        if (previous == null) {
+            changed = true;
+        } else if (directory) {
+            // Directory times change with their content, which is compared file by file
+            changed = false;
+        } else if (previous.getSize() != size) {
+            changed = true;
+        } else if (previous.getLastModified() == lastModified) {
+            changed = false;
+            digest = sameDigests ? previous.getDigest() : null;
+        } else if (sameDigests) {
+            // Touched file, only archived if its content changed
+            digest = ContentDeduplicator.digest(file, manifestDigest);
+            changed = !Arrays.equals(digest, previous.getDigest());
+        } else {
+            changed = true;
+        }
+
+        if (changed && manifestDigest != null && !directory) {
+            digest = ContentDeduplicator.digest(file, manifestDigest);
+        }
+        manifest.add(new ArchiveManifest.Entry(name, size, lastModified, digest));
+        return changed;
+    }
+
+    /**
+     * Creates the manifest of the archive about to be written.
+     *
+     * @return the manifest, <code>null</code> if no manifest is written.
+     */
+    private ArchiveManifest createManifest() {
+        if (!writeManifest && incrementalBase == null) {
+            return null;
+        }
+        return new ArchiveManifest(incrementalBase != null ? incrementalBase.getName() : null, manifestDigest);
+    }
+
+    /**
+     * Loads the manifest of the base archive.
+     *
+     * @return the manifest, <code>null</code> if the archive is not incremental.
+     * @throws IOException if the base archive has no manifest.
+     */
+    private ArchiveManifest loadBaseManifest() throws IOException {
+        if (incrementalBase == null) {
+            return null;
+        }
+        ArchiveManifest base = ArchiveManifest.load(incrementalBase);
+        if (base == null) {
+            throw new FileNotFoundException("No manifest for the base archive " + incrementalBase);
+        }
+        return base;
+    }
+
+    /**
+     * Records the deletions since the base archive and saves the manifest next to the archive.
+     */
+    private void saveManifest(ArchiveManifest base, ArchiveManifest manifest) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        if (base != null) {
+            for (ArchiveManifest.Entry entry : base.getEntries()) {
+                if (manifest.get(entry.getName()) == null) {
+                    manifest.addDeleted(entry.getName());
                 }
+            }
+        }
+        manifest.save(archiveFile);
+    }
+
+    /**
+     * Writes the content of the given entry into the archive output stream. The default implementation writes the
+     * whole file with {@link #writeContent(ArchiveOutputStream, File)}.
+     *
+     * @param outStream the ouput stream.
+     * @param entry the current entry.
+     * @param file the file of the entry.
+     * @throws IOException if an io exception occures.
+     */
+    protected void writeContent(O outStream, E entry, File file) throws IOException {
+        writeContent(outStream, file);
+    }
+
+    /**
+     * Returns whether the content of the given entry is the content of its file as is, so that it can be read ahead
+     * and read back from the archive at its offset. The default implementation returns <code>true</code>.
+     *
+     * @param entry the archive entry.
+     * @return <code>true</code> if the entry holds the whole file content as is.
+     */
+    protected boolean isStoredAsIs(E entry) {
+        return true;
+    }
+
+    /**
+     * Writes the content of the given file into the current entry of the archive output stream.
+     *
+     * @param outStream the ouput stream.
+     * @param file the file.
+     * @throws IOException if an io exception occures.
+     */
+    void writeContent(O outStream, File file) throws IOException {
+        if (outStream instanceof ITransferableOutput) {
+            FileInputStream fileInputStream = new FileInputStream(file);
+            try {
+                FileChannel channel = fileInputStream.getChannel();
+                ((ITransferableOutput) outStream).transferFrom(channel, 0, channel.size());
             } finally {
-                outStream.closeArchiveEntry();
-                if (fileInputStream != null) {
-                    fileInputStream.close();
-                }
-                if (origin != null) {
-                    origin.close();
-                }
+                fileInputStream.close();
+            }
+            return;
+        }
+
+        byte[] data = new byte[BUFFER_SIZE];
+        FileInputStream fileInputStream = null;
+        BufferedInputStream origin = null;
+
+        try {
+            fileInputStream = new FileInputStream(file);
+            origin = new BufferedInputStream(fileInputStream, BUFFER_SIZE);
+            int count;
+            while ((count = origin.read(data, 0, BUFFER_SIZE)) != -1) {
+                outStream.write(data, 0, count);
+            }
+        } finally {
+            if (fileInputStream != null) {
+                fileInputStream.close();
+            }
+            if (origin != null) {
+                origin.close();
             }
         }
     }
 
     protected abstract E createArchiveEntry(String name, File file);
 
+    /**
+     * Creates the entry of a file found by the directory walk, whose attributes are already read. The default
+     * implementation calls {@link #createArchiveEntry(String, File)}.
+     *
+     * @param name the entry name.
+     * @param file the file.
+     * @param attributes the attributes of the file.
+     * @return the archive entry.
+     * @throws IOException if an io exception occures.
+     */
+    protected E createArchiveEntry(String name, File file, BasicFileAttributes attributes) throws IOException {
+        return createArchiveEntry(name, file);
+    }
+
+    /**
+     * Creates the archive entry of a regular file whose content does not come from a file. The default implementation
+     * throws an {@link IOException}, for the formats that only archive files.
+     *
+     * @param name the entry name.
+     * @param size the size of the content.
+     * @param mode the permission bits of the entry.
+     * @param lastModified the modification time of the entry, in milliseconds.
+     * @return the archive entry.
+     * @throws IOException if the format does not support generated entries.
+     */
+    protected E createArchiveEntry(String name, long size, int mode, long lastModified) throws IOException {
+        throw new IOException("Generated entries are not supported by this format: " + getClass().getName());
+    }
+
+    /**
+     * Creates a hard link entry to a previous entry of the archive, used for duplicated contents. The default
+     * implementation returns <code>null</code>, meaning that the format has no links and that the content is written
+     * again.
+     *
+     * @param name the entry name.
+     * @param target the name of the entry holding the content.
+     * @param attributes the attributes of the file.
+     * @return the link entry, <code>null</code> if not supported.
+     */
+    protected E createLinkEntry(String name, String target, BasicFileAttributes attributes) {
+        return null;
+    }
+
+    /**
+     * Returns the name of the entry the given entry is a hard link to, see
+     * {@link #createLinkEntry(String, String, BasicFileAttributes)}. The default implementation returns
+     * <code>null</code>.
+     *
+     * @param entry the archive entry.
+     * @return the name of the linked entry, <code>null</code> if the entry is not a hard link.
+     */
+    protected String getLinkTarget(E entry) {
+        return null;
+    }
+
+    /**
+     * Creates a symbolic link entry, used when links are preserved. The default implementation returns
+     * <code>null</code>, meaning that the format has no symbolic links and that the link is left out.
+     *
+     * @param name the entry name.
+     * @param target the target of the link, as stored in the link.
+     * @param attributes the attributes of the link.
+     * @return the link entry, <code>null</code> if not supported.
+     */
+    protected E createSymbolicLinkEntry(String name, String target, BasicFileAttributes attributes) {
+        return null;
+    }
+
     protected abstract O createArchiveOutputStream(BufferedOutputStream stream);
 
+    /**
+     * Opens the output stream writing the archive file. The default implementation calls
+     * {@link #openArchiveOutputStream(OutputStream)} with a file stream.
+     *
+     * @return the archive output stream.
+     * @throws IOException if an io exception occures.
+     */
+    protected O openArchiveOutputStream() throws IOException {
+        return openArchiveOutputStream(new FileOutputStream(archiveFile));
+    }
+
+    /**
+     * Opens the archive output stream writing into the given stream. The default implementation wraps the compressed
+     * stream, see {@link #compress(OutputStream)}, with {@link #createArchiveOutputStream(BufferedOutputStream)}.
+     *
+     * @param target the stream receiving the archive, closed with the archive output stream.
+     * @return the archive output stream.
+     * @throws IOException if an io exception occures.
+     */
+    protected O openArchiveOutputStream(OutputStream target) throws IOException {
+        return createArchiveOutputStream(new BufferedOutputStream(compress(target)));
+    }
+
+    /**
+     * Opens the archive output stream writing into the given channel. The default implementation calls
+     * {@link #openArchiveOutputStream(OutputStream)} with a stream over the channel.
+     *
+     * @param target the channel receiving the archive, owned by the caller and left open when the archive output
+     * stream is closed.
+     * @return the archive output stream.
+     * @throws IOException if an io exception occures.
+     */
+    protected O openArchiveOutputStream(WritableByteChannel target) throws IOException {
+        return openArchiveOutputStream(new CloseShieldOutputStream(Channels.newOutputStream(target)));
+    }
+
+    /**
+     * Wraps the stream receiving the archive with the compression of the archive. When a compression is set, the data
+     * is compressed on a dedicated thread fed through a bounded ring of buffers, so that the archive framing and the
+     * compression run on different cores, or on several threads for gzip, see {@link #setCompressionThreads(int)}.
+     *
+     * @param target the stream receiving the archive.
+     * @return the stream to write the archive to, closing the given stream when closed.
+     * @throws IOException if an io exception occures.
+     */
+    protected OutputStream compress(OutputStream target) throws IOException {
+        blockIndex = null;
+        if (compression == Compression.NONE) {
+            return target;
+        }
+        if (compression == Compression.GZIP && independentBlocks) {
+            ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(new BufferedOutputStream(target),
+                    compressionThreads, Deflater.DEFAULT_COMPRESSION,
+                    ParallelGzipOutputStream.MAX_INDEPENDENT_BLOCK_SIZE, true);
+            blockIndex = gzipOutputStream.getBlockIndex();
+            return gzipOutputStream;
+        }
+        if (compression == Compression.GZIP && compressionThreads > 1) {
+            return new ParallelGzipOutputStream(new BufferedOutputStream(target), compressionThreads);
+        }
+        try {
+            return new BufferRingOutputStream(compression.compress(new BufferedOutputStream(target)));
+        } catch (IOException e) {
+            target.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an output stream writing new entries at the end of the existing archive file, over its end of archive
+     * records. The default implementation throws an {@link IOException}, for the formats that cannot be appended to.
+     *
+     * @param index the index to complete with the entries found in the archive, <code>null</code> if not needed.
+     * When the given index already holds entries, they describe the archive and may be used to locate its end.
+     * @return the archive output stream, counting bytes from the beginning of the archive.
+     * @throws IOException if an io exception occures, or if the format does not support append.
+     */
+    protected O openAppendOutputStream(ArchiveIndex index) throws IOException {
+        throw new IOException("Append is not supported by this format: " + getClass().getName());
+    }
+
+    /**
+     * Abandons an append that failed, leaving the archive as it was before, so that it still matches its index and
+     * manifest. The default implementation closes the stream.
+     *
+     * @param outStream the stream opened by {@link #openAppendOutputStream(ArchiveIndex)}.
+     * @throws IOException if an io exception occures.
+     */
+    protected void abortAppend(O outStream) throws IOException {
+        outStream.close();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -89,21 +522,171 @@ public abstract class AbstractArchiveCreator<O extends ArchiveOutputStream, E ex
     }
 
     /**
-     * Returns the relative path.
+     * Sets the number of threads reading upcoming files while the archive is written. The entries are still written
+     * in the order of the directory walk. Defaults to 1, which reads and writes every file on the calling thread.
      *
-     * @param baseName the base path.
-     * @param file the file.
-     * @return the path of the given file relative to the base name.
-     * @throws IOException if an io exception occures.
+     * @param readThreads the number of reader threads.
      */
-    private String getRelativePath(String baseName, File file) throws IOException {
-        String name = file.getCanonicalPath().substring(baseName.length() + 1);
+    public void setReadThreads(int readThreads) {
+        Assert.isTrue(readThreads > 0, "readThreads must be positive");
+        this.readThreads = readThreads;
+    }
 
-        if (file.isDirectory()) {
-            name += '/';
+    /**
+     * Sets the maximum number of bytes the reader threads may hold in memory. Files larger than their share of this
+     * budget are not prefetched but copied by the writer.
+     *
+     * @param prefetchMemory the memory budget in bytes.
+     */
+    public void setPrefetchMemory(long prefetchMemory) {
+        Assert.isTrue(prefetchMemory > 0, "prefetchMemory must be positive");
+        this.prefetchMemory = prefetchMemory;
+    }
+
+    /**
+     * Sets the number of threads listing directories and reading file attributes ahead of the walk. The entries are
+     * still added in the order of a sequential walk. Defaults to 1, which streams the directories on the calling
+     * thread.
+     *
+     * @param walkThreads the number of walker threads.
+     */
+    public void setWalkThreads(int walkThreads) {
+        Assert.isTrue(walkThreads > 0, "walkThreads must be positive");
+        this.walkThreads = walkThreads;
+    }
+
+    /**
+     * Enables writing an {@link ArchiveIndex} next to the archive, so that extractors can look entries up without
+     * scanning the archive.
+     *
+     * @param writeIndex <code>true</code> to write the index.
+     */
+    public void setWriteIndex(boolean writeIndex) {
+        this.writeIndex = writeIndex;
+    }
+
+    /**
+     * Enables writing an {@link ArchiveManifest} next to the archive, recording the state of the archived files so
+     * that the archive can be the base of an incremental one.
+     *
+     * @param writeManifest <code>true</code> to write the manifest.
+     */
+    public void setWriteManifest(boolean writeManifest) {
+        this.writeManifest = writeManifest;
+    }
+
+    /**
+     * Makes the next archives increments of the given one: only the files that are new or changed since the base
+     * archive, by size and modification time, are written, and the deleted files are recorded in the manifest. The
+     * base archive must have a manifest; the written archive always gets one, so that increments can be chained.
+     *
+     * @param incrementalBase the base archive, <code>null</code> to write full archives.
+     */
+    public void setIncrementalBase(File incrementalBase) {
+        this.incrementalBase = incrementalBase;
+    }
+
+    /**
+     * Records a digest of the content of the archived files in the manifest. A file whose modification time changed
+     * but whose size and digest did not is then not written again. Only new and changed files are digested.
+     *
+     * @param manifestDigest the {@link MessageDigest} algorithm, <code>null</code> to record no digest.
+     */
+    public void setManifestDigest(String manifestDigest) {
+        if (manifestDigest != null) {
+            try {
+                MessageDigest.getInstance(manifestDigest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown digest algorithm " + manifestDigest, e);
+            }
         }
+        this.manifestDigest = manifestDigest;
+    }
+
+    /**
+     * Enables the deduplication of contents: a file with the same content as a file already written is added as a
+     * hard link entry to it. Only files sharing their size with another file are digested.
+     *
+     * @param deduplicate <code>true</code> to link duplicated contents.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Preserves links: symbolic links are archived as links instead of being followed, and files already archived
+     * through another hard link, recognized by their device and inode, are archived as hard links to the first
+     * entry. When links are followed, a link to an ancestor directory fails the walk.
+     *
+     * @param preserveLinks <code>true</code> to archive links as links.
+     */
+    public void setPreserveLinks(boolean preserveLinks) {
+        this.preserveLinks = preserveLinks;
+    }
+
+    /**
+     * Sets the compression of the archive file. Entry offsets are meaningless in a compressed archive: no index is
+     * written, unless with {@link #setIndependentBlocks(boolean)}, and the archive cannot be appended to. Defaults to
+     * {@link Compression#NONE}.
+     *
+     * @param compression the compression.
+     */
+    public void setCompression(Compression compression) {
+        Assert.notNull(compression, "compression must not be null");
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the number of threads compressing gzip archives. Above 1, the archive is cut in blocks deflated in
+     * parallel by a {@link ParallelGzipOutputStream}; the output is still a single standard gzip stream. Defaults to
+     * 1, which compresses on a single dedicated thread.
+     *
+     * @param compressionThreads the number of compressing threads.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        Assert.isTrue(compressionThreads > 0, "compressionThreads must be positive");
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Writes gzip archives as a series of independent members recording their size, in the BGZF format of bgzip, so
+     * that extractors can inflate them in parallel, see {@link AbstractArchiveExtractor#setDecompressionThreads(int)}.
+     * The archive is slightly larger and is still a standard gzip file. Such archives are seekable: with
+     * {@link #setWriteIndex(boolean)}, a {@link GzipBlockIndex} is written next to the {@link ArchiveIndex}, so that
+     * an entry is read by inflating only the members holding it.
+     *
+     * @param independentBlocks <code>true</code> to write independent members.
+     */
+    public void setIndependentBlocks(boolean independentBlocks) {
+        this.independentBlocks = independentBlocks;
+    }
+
+    /**
+     * Sets the number of bytes of an entry of unknown length held in memory, see
+     * {@link IArchiveWriter#add(String, int, long, InputStream)}. Larger entries are spilled to a temporary file
+     * until their size is known. Defaults to 1 MiB.
+     *
+     * @param spillThreshold the number of bytes, 0 to spill every entry of unknown length.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        Assert.isTrue(spillThreshold >= 0, "spillThreshold must not be negative");
+        this.spillThreshold = spillThreshold;
+    }
 
-        return name.replaceAll("\\\\", "/");
+    /**
+     * Sets the directory of the temporary files holding the spilled entries of unknown length.
+     *
+     * @param spillDirectory the directory, <code>null</code> for the default temporary directory.
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return the compression of the archive file.
+     */
+    protected Compression getCompression() {
+        return compression;
     }
 
     /**
@@ -111,17 +694,29 @@ public abstract class AbstractArchiveCreator<O extends ArchiveOutputStream, E ex
      */
     @Override
     public File inflate(File... directories) throws IOException {
-        O outStream = createArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile)));
+        ArchiveManifest base = loadBaseManifest();
+        ArchiveManifest manifest = createManifest();
+        O outStream = openArchiveOutputStream();
+        ArchiveIndex index = writeIndex && isSeekable() ? new ArchiveIndex() : null;
+        PipelinedEntryWriter<O, E> writer = new PipelinedEntryWriter<O, E>(this, outStream, readThreads,
+                prefetchMemory, index);
+
+        FileTreeWalker walker = new FileTreeWalker(walkThreads, !preserveLinks);
+        WriteSession session = new WriteSession(writer, base, manifest);
 
         try {
             for (File directory : directories) {
-                String baseName = directory.getCanonicalPath();
-                addFiles(baseName, outStream, directory);
+                addFiles(walker, session, directory);
             }
+            writer.flush();
         } finally {
+            walker.close();
+            writer.close();
             outStream.close();
         }
 
+        saveIndex(index);
+        saveManifest(base, manifest);
         return archiveFile;
     }
 
@@ -131,27 +726,368 @@ public abstract class AbstractArchiveCreator<O extends ArchiveOutputStream, E ex
     @Override
     public File inflate(File file) throws IOException {
         if (file.isDirectory()) {
-            inflate(new File[] { file });
-        } else {
-            O outStream = createArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile)));
-            E entry = createArchiveEntry(file.getName(), file);
+            return inflate(new File[] { file });
+        }
+
+        ArchiveManifest base = loadBaseManifest();
+        ArchiveManifest manifest = createManifest();
+        O outStream = openArchiveOutputStream();
+        ArchiveIndex index = writeIndex && isSeekable() ? new ArchiveIndex() : null;
+        PipelinedEntryWriter<O, E> writer = new PipelinedEntryWriter<O, E>(this, outStream, 1, prefetchMemory, index);
+
+        try {
+            addFile(new WriteSession(writer, base, manifest), file.getName(), file, readAttributes(file));
+            writer.flush();
+        } finally {
+            writer.close();
+            outStream.close();
+        }
+
+        saveIndex(index);
+        saveManifest(base, manifest);
+        return archiveFile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File append(File... files) throws IOException {
+        boolean exists = archiveFile.exists();
+        // A compressed stream cannot be reopened at its end
+        if (compression != Compression.NONE || exists && Compression.detect(archiveFile) != Compression.NONE) {
+            throw new IOException("Append is not supported on compressed archives: " + archiveFile);
+        }
+        ArchiveIndex index = null;
+        if (writeIndex) {
+            index = exists ? ArchiveIndex.load(archiveFile) : null;
+            if (index == null) {
+                index = new ArchiveIndex();
+            }
+        }
+        ArchiveManifest previous = exists ? ArchiveManifest.load(archiveFile) : null;
+        ArchiveManifest manifest = createAppendManifest(exists, previous);
+        O outStream = openAppendOutputStream(index);
+        PipelinedEntryWriter<O, E> writer = new PipelinedEntryWriter<O, E>(this, outStream, readThreads,
+                prefetchMemory, index);
+
+        FileTreeWalker walker = new FileTreeWalker(walkThreads, !preserveLinks);
+        WriteSession session = new WriteSession(writer, null, manifest);
+
+        boolean appended = false;
+        try {
+            addAll(walker, session, files);
+            writer.flush();
+            appended = true;
+        } finally {
+            walker.close();
+            writer.close();
+            if (appended) {
+                outStream.close();
+            } else {
+                abortAppend(outStream);
+            }
+        }
+
+        if (index != null) {
+            index.save(archiveFile);
+        }
+        saveAppendManifest(previous, manifest);
+        return archiveFile;
+    }
+
+    /**
+     * Creates the manifest of an archive being appended to, holding the entries of its current manifest. The
+     * appended files are recorded over them, so that the manifest still describes the whole archive.
+     *
+     * @return the manifest, <code>null</code> if the existing archive has no manifest or if no manifest is written.
+     */
+    private ArchiveManifest createAppendManifest(boolean exists, ArchiveManifest previous) {
+        if (previous == null) {
+            // The files of an archive without manifest are unknown, no manifest can describe it
+            return writeManifest && !exists ? new ArchiveManifest(null, manifestDigest) : null;
+        }
+        ArchiveManifest manifest = new ArchiveManifest(previous.getBaseName(), manifestDigest);
+        boolean sameDigests = manifestDigest != null && manifestDigest.equals(previous.getDigestAlgorithm());
+        for (ArchiveManifest.Entry entry : previous.getEntries()) {
+            manifest.add(sameDigests ? entry : new ArchiveManifest.Entry(entry.getName(), entry.getSize(),
+                    entry.getLastModified(), null));
+        }
+        return manifest;
+    }
+
+    /**
+     * Saves the manifest of an archive appended to, keeping the deletions of the previous manifest whose files were
+     * not appended again.
+     */
+    private void saveAppendManifest(ArchiveManifest previous, ArchiveManifest manifest) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        if (previous != null) {
+            for (String name : previous.getDeleted()) {
+                if (manifest.get(name) == null) {
+                    manifest.addDeleted(name);
+                }
+            }
+        }
+        manifest.save(archiveFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(OutputStream target, File... files) throws IOException {
+        write(openWriter(target), files);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(WritableByteChannel target, File... files) throws IOException {
+        write(openWriter(target), files);
+    }
+
+    private static void write(IArchiveWriter writer, File... files) throws IOException {
+        try {
+            writer.add(files);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IArchiveWriter openWriter() throws IOException {
+        return new ArchiveWriter(openArchiveOutputStream(), null, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IArchiveWriter openWriter(OutputStream target) throws IOException {
+        return new ArchiveWriter(openArchiveOutputStream(new CloseShieldOutputStream(target)), target, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IArchiveWriter openWriter(WritableByteChannel target) throws IOException {
+        return new ArchiveWriter(openArchiveOutputStream(target), null, false);
+    }
+
+    /**
+     * Add the given files to the archive writer, directories with all the files they contain.
+     */
+    private void addAll(FileTreeWalker walker, WriteSession session, File... files) throws IOException {
+        for (File file : files) {
+            BasicFileAttributes attributes = readAttributes(file);
+            if (attributes.isDirectory()) {
+                addFiles(walker, session, file);
+            } else {
+                addFile(session, file.getName(), file, attributes);
+            }
+        }
+    }
+
+    /**
+     * Returns whether entries can be read at their offset in the archive being written.
+     */
+    private boolean isSeekable() {
+        return compression == Compression.NONE || compression == Compression.GZIP && independentBlocks;
+    }
+
+    /**
+     * Saves the index of the archive just written, with the block index of a compressed archive.
+     */
+    private void saveIndex(ArchiveIndex index) throws IOException {
+        if (index == null) {
+            return;
+        }
+        if (blockIndex != null) {
+            blockIndex.save(archiveFile);
+        }
+        index.save(archiveFile);
+    }
+
+    /**
+     * Writer of an archive opened by the creator, into the archive file or into a target of the caller.
+     */
+    private final class ArchiveWriter implements IArchiveWriter {
+
+        private final O outStream;
+
+        /**
+         * Stream of the caller flushed once the archive is written, <code>null</code> if none.
+         */
+        private final OutputStream target;
+
+        /**
+         * Whether the index and the manifest are saved next to the archive file.
+         */
+        private final boolean saveSidecars;
+
+        private final ArchiveIndex index;
+
+        private final PipelinedEntryWriter<O, E> writer;
+
+        private final FileTreeWalker walker;
+
+        private final WriteSession session;
+
+        /**
+         * Buffer of the entries of unknown length, reused from one entry to the next.
+         */
+        private SpillBuffer spillBuffer;
+
+        private boolean failed;
+
+        private boolean closed;
+
+        ArchiveWriter(O outStream, OutputStream target, boolean saveSidecars) throws IOException {
+            this.outStream = outStream;
+            this.target = target;
+            this.saveSidecars = saveSidecars;
+            this.index = saveSidecars && writeIndex && isSeekable() ? new ArchiveIndex() : null;
+            ArchiveManifest base;
             try {
-                outStream.putArchiveEntry(entry);
-            } catch (ZipException ignore) {
+                base = loadBaseManifest();
+            } catch (IOException | RuntimeException e) {
+                outStream.close();
+                throw e;
             }
-            InputStream inputStream = new FileInputStream(file);
+            this.writer = new PipelinedEntryWriter<O, E>(AbstractArchiveCreator.this, outStream, readThreads,
+                    prefetchMemory, index);
+            this.walker = new FileTreeWalker(walkThreads, !preserveLinks);
+            // Without sidecars, the manifest only filters the files of an incremental archive
+            this.session = new WriteSession(writer, base, createManifest());
+        }
+
+        @Override
+        public void add(File... files) throws IOException {
+            checkOpen();
             try {
-                IOUtils.copy(inputStream, outStream);
+                addAll(walker, session, files);
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void add(String name, int mode, long lastModified, EntrySource source) throws IOException {
+            checkOpen();
+            Assert.hasLength(name, "name must not be empty");
+            Assert.notNull(source, "source must not be null");
+            try {
+                long size = source.getSize();
+                if (session.manifest != null) {
+                    session.manifest.add(new ArchiveManifest.Entry(name, size, lastModified, null));
+                }
+                writer.write(createArchiveEntry(name, size, mode, lastModified), source);
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void add(String name, int mode, long lastModified, InputStream in) throws IOException {
+            checkOpen();
+            Assert.notNull(in, "in must not be null");
+            if (spillBuffer == null) {
+                spillBuffer = new SpillBuffer(spillThreshold, spillDirectory);
+            }
+            try {
+                spillBuffer.readFrom(in);
+            } catch (IOException | RuntimeException e) {
+                spillBuffer.reset();
+                failed = true;
+                throw e;
+            }
+            try {
+                add(name, mode, lastModified, spillBuffer.toSource());
             } finally {
+                spillBuffer.reset();
+            }
+        }
+
+        @Override
+        public ArchiveEntryBuilder newEntry(String name) {
+            return new ArchiveEntryBuilder(this, name);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!failed) {
+                    writer.flush();
+                }
+            } finally {
+                walker.close();
+                writer.close();
                 try {
-                    outStream.closeArchiveEntry();
                     outStream.close();
                 } finally {
-                    inputStream.close();
+                    if (spillBuffer != null) {
+                        spillBuffer.close();
+                    }
                 }
             }
+
+            if (failed) {
+                return;
+            }
+            if (target != null) {
+                target.flush();
+            }
+            if (saveSidecars) {
+                saveIndex(index);
+                saveManifest(session.base, session.manifest);
+            }
         }
 
-        return archiveFile;
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Archive writer closed");
+            }
+        }
+    }
+
+    /**
+     * State of the archive being written.
+     */
+    private final class WriteSession {
+
+        private final PipelinedEntryWriter<O, E> writer;
+
+        private final ArchiveManifest base;
+
+        private final ArchiveManifest manifest;
+
+        private final ContentDeduplicator deduplicator;
+
+        /**
+         * Name of the first entry of each archived file key with several links, when links are preserved.
+         */
+        private final Map<Object, String> linkedFiles;
+
+        WriteSession(PipelinedEntryWriter<O, E> writer, ArchiveManifest base, ArchiveManifest manifest) {
+            this.writer = writer;
+            this.base = base;
+            this.manifest = manifest;
+            this.deduplicator = deduplicate ? new ContentDeduplicator() : null;
+            this.linkedFiles = preserveLinks ? new HashMap<Object, String>() : null;
+        }
     }
 }
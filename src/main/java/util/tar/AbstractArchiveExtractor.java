@@ -1,10 +1,26 @@
 package util.tar;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,9 +29,24 @@ import org.springframework.util.Assert;
 
 /**
  * Abstract ArchiveExtractor to implement org.apache.commons.compress archivers.
+ *
+ * <p>When the archive is a file on disk and the format supports it (see {@link #openScanner(FileChannel)}), entries
+ * are located by reading their headers only and the content of the selected entries is transferred straight from the
+ * archive channel. Other archives are read sequentially through the archive input stream; compressed archives, see
+ * {@link Compression}, are decompressed on a dedicated thread.
  */
 public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> implements IArchiveExtractor {
 
+    /**
+     * Marker returned by {@link #locate(String, PathMatcher)} when no entry matches.
+     */
+    private static final ArchiveIndex.Entry NOT_FOUND = new ArchiveIndex.Entry("", -1, -1, 0, 0, false);
+
+    /**
+     * Default amount of heap used to hand entry contents over to the writer threads.
+     */
+    private static final long DEFAULT_WRITE_MEMORY = 64L * 1024 * 1024;
+
     private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
 
     /**
@@ -23,6 +54,50 @@ public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> imp
      */
     private final Resource archiveFile;
 
+    /**
+     * Whether lookups go through an {@link ArchiveIndex}.
+     */
+    private boolean useIndex;
+
+    /**
+     * Index loaded or built for the archive, with the archive state it belongs to.
+     */
+    private ArchiveIndex index;
+
+    /**
+     * Members of the archive file if it is a gzip file with independent blocks, loaded with the index.
+     */
+    private GzipBlockIndex blockIndex;
+
+    private long indexedLength;
+
+    private long indexedLastModified;
+
+    /**
+     * Number of threads writing the extracted files, 1 writes them on the calling thread.
+     */
+    private int writeThreads = 1;
+
+    /**
+     * Maximum number of bytes buffered for the writer threads.
+     */
+    private long writeMemory = DEFAULT_WRITE_MEMORY;
+
+    /**
+     * Compression of the archive, <code>null</code> to detect it.
+     */
+    private Compression compression;
+
+    /**
+     * Number of threads inflating multi-member gzip archives, 1 inflates on a single dedicated thread.
+     */
+    private int decompressionThreads = 1;
+
+    /**
+     * Matcher of the entry names, shared by all calls so that its compiled patterns are reused.
+     */
+    private final AntPathMatcher matcher = new AntPathMatcher();
+
     /**
      * Creates a new extractor for the given file.
      *
@@ -41,6 +116,116 @@ public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> imp
 
     protected abstract I createArchiveInputStream(InputStream fileInputStream);
 
+    /**
+     * Creates a scanner walking the entries of the archive held by the given channel with positional reads. The
+     * default implementation returns <code>null</code>, meaning that the archive format cannot be scanned.
+     *
+     * @param channel the archive channel.
+     * @return the scanner, <code>null</code> if not supported.
+     * @throws IOException if an io exception occures.
+     */
+    protected IArchiveScanner openScanner(FileChannel channel) throws IOException {
+        return null;
+    }
+
+    /**
+     * Enables the entry index for {@link #deflate(String)} and {@link #entryExist(String)}. When the archive is a
+     * file, the index is loaded from its sidecar file, or built on the first lookup and saved next to the archive.
+     * Compressed archives are only indexed when written as gzip with independent blocks and an index, see
+     * {@link GzipBlockIndex}: the content of an entry is then read by inflating the members holding it only.
+     *
+     * @param useIndex <code>true</code> to look entries up through the index.
+     */
+    public void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWriteThreads(int writeThreads) {
+        Assert.isTrue(writeThreads > 0, "writeThreads must be positive");
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * Sets the maximum number of bytes of entry content read from an archive stream and waiting for a writer thread.
+     * Larger entries are written by the decoding thread. Content of file based archives is never buffered.
+     *
+     * @param writeMemory the memory budget in bytes.
+     */
+    public void setWriteMemory(long writeMemory) {
+        Assert.isTrue(writeMemory > 0, "writeMemory must be positive");
+        this.writeMemory = writeMemory;
+    }
+
+    /**
+     * Sets the compression of the archive. By default the compression is detected from the magic bytes of the
+     * archive. Compressed archives are always read sequentially, on a dedicated decompression thread.
+     *
+     * @param compression the compression, <code>null</code> to detect it.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the number of threads inflating gzip archive files made of independent members recording their size, such
+     * as the ones written by bgzip or with {@link AbstractArchiveCreator#setIndependentBlocks(boolean)}. Other
+     * archives are still decompressed by a single thread. Defaults to 1.
+     *
+     * @param decompressionThreads the number of inflating threads.
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        Assert.isTrue(decompressionThreads > 0, "decompressionThreads must be positive");
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    /**
+     * Builds the index of the given archive file by scanning its entries.
+     *
+     * @param file the archive file.
+     * @return the index, <code>null</code> if the archive format cannot be scanned.
+     * @throws IOException if an io exception occures.
+     */
+    protected ArchiveIndex buildIndex(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            IArchiveScanner scanner = openScanner(channel);
+            if (scanner == null) {
+                return null;
+            }
+
+            ArchiveIndex index = new ArchiveIndex();
+            for (ArchiveEntry entry = scanner.getNextEntry(); entry != null; entry = scanner.getNextEntry()) {
+                addEntry(index, entry, scanner);
+            }
+            return index;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Adds the current entry of the scanner to the given index. A hard link is located at the content of its target.
+     *
+     * @return the added index entry.
+     */
+    private ArchiveIndex.Entry addEntry(ArchiveIndex index, ArchiveEntry entry, IArchiveScanner scanner) {
+        String linkTarget = getLinkTarget(entry);
+        if (linkTarget != null) {
+            return index.addLink(entry.getName(), scanner.getHeaderOffset(), linkTarget,
+                    entry.getLastModifiedDate().getTime());
+        }
+        boolean stored = entry.isDirectory() || isStoredEntry(entry);
+        ArchiveIndex.Entry indexEntry = new ArchiveIndex.Entry(entry.getName(), scanner.getHeaderOffset(),
+                stored ? scanner.getDataOffset() : -1, scanner.getDataSize(), entry.getLastModifiedDate().getTime(),
+                entry.isDirectory());
+        index.add(indexEntry);
+        return indexEntry;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -67,52 +252,684 @@ public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> imp
             throw new IllegalArgumentException("Invalid destination: " + destination.getCanonicalPath());
         }
 
-        AntPathMatcher matcher = new AntPathMatcher();
+        ExtractionWriterPool writers = writeThreads > 1 ? new ExtractionWriterPool(writeThreads, writeMemory) : null;
+        try {
+            File file = getSeekableFile();
+            if (file == null || !deflateSeekable(file, destination, outputFilePattern, flat, matcher, writers)) {
+                deflateStream(file, destination, outputFilePattern, flat, matcher, writers);
+            }
+        } finally {
+            if (writers != null) {
+                writers.close();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void restore(File destination) throws IOException {
+        deflate(destination);
+
+        File file = getLocalFile();
+        ArchiveManifest manifest = file != null ? ArchiveManifest.load(file) : null;
+        if (manifest == null) {
+            return;
+        }
+        Path root = destination.toPath().toAbsolutePath().normalize();
+        for (String name : manifest.getDeleted()) {
+            Path deleted = root.resolve(name).normalize();
+            if (!deleted.startsWith(root) || deleted.equals(root)) {
+                throw new IOException("Invalid deleted entry " + name);
+            }
+            FileUtils.deleteQuietly(deleted.toFile());
+        }
+    }
+
+    /**
+     * Extracts the archive by reading it sequentially through the archive input stream.
+     */
+    private void deflateStream(File file, File destination, String outputFilePattern, boolean flat,
+            PathMatcher matcher, ExtractionWriterPool writers) throws IOException {
+        FileInputStream fileInputStream = null;
+        CountingInputStream countingInputStream = null;
         I archiveInputStream = null;
+        // Links whose target was not extracted in place, with the position of their content
+        Map<File, Integer> pendingLinks = new HashMap<File, Integer>();
 
         try {
-            archiveInputStream = createArchiveInputStream(archiveFile.getInputStream());
+            if (file != null) {
+                // Count the consumed bytes to know where the content of stored entries starts
+                fileInputStream = new FileInputStream(file);
+                countingInputStream = new CountingInputStream(fileInputStream);
+                archiveInputStream = createArchiveInputStream(countingInputStream);
+            } else {
+                archiveInputStream = createArchiveInputStream(openArchiveStream());
+            }
 
-            for (ArchiveEntry entry = archiveInputStream.getNextEntry(); entry != null; entry = archiveInputStream.getNextEntry()) {
+            // Position of the content of each entry, for the links to entries not extracted in place
+            Map<String, Integer> contentPositions = isSelective(outputFilePattern, flat)
+                    ? new HashMap<String, Integer>() : null;
+            int position = 0;
+            for (ArchiveEntry entry = archiveInputStream.getNextEntry(); entry != null; entry = archiveInputStream.getNextEntry(), position++) {
 
-                String entryName = entry.getName();
+                String linkTarget = getLinkTarget(entry);
+                if (contentPositions != null && isContentEntry(entry)) {
+                    Integer contentPosition = linkTarget != null ? contentPositions.get(linkTarget) : position;
+                    if (contentPosition != null) {
+                        contentPositions.put(entry.getName(), contentPosition);
+                    }
+                }
 
-                // Is a directory
-                if (entry.isDirectory() && !flat) {
-                    File newDir = new File(destination, entryName);
-                    newDir.mkdirs();
+                File newFile = getTargetFile(entry, destination, outputFilePattern, flat, matcher, writers);
+                if (newFile == null) {
                     continue;
                 }
+                // A later entry of the same name wins over a link written after the pass
+                pendingLinks.remove(newFile);
 
-                // Output file pattern check
-                if (StringUtils.isNotEmpty(outputFilePattern)
-                        && !matcher.match(outputFilePattern, new File(entryName).getName())) {
+                if (linkTarget != null) {
+                    if (isExtractedInPlace(linkTarget, outputFilePattern, flat)) {
+                        link(newFile, destination, linkTarget, writers);
+                    } else if (contentPositions.get(linkTarget) != null) {
+                        // The content was skipped, it is read again once the archive is extracted
+                        pendingLinks.put(newFile, contentPositions.get(linkTarget));
+                    } else {
+                        LOGGER.warn("Link target " + linkTarget + " of " + newFile + " not found in the archive");
+                    }
+                    continue;
+                }
+                String symbolicLinkTarget = getSymbolicLinkTarget(entry);
+                if (symbolicLinkTarget != null) {
+                    symbolicLink(newFile, destination, symbolicLinkTarget, writers);
                     continue;
                 }
 
-                // Remove directory strucutre if flat mode actived
-                if (flat) {
-                    entryName = new File(entryName).getName();
+                SparseFileMap sparseMap = getSparseMap(archiveInputStream);
+                if (sparseMap != null) {
+                    if (writers != null) {
+                        writers.await(newFile);
+                        Files.createDirectories(newFile.getParentFile().toPath());
+                    }
+                    writeSparse(archiveInputStream, sparseMap, newFile);
+                    continue;
                 }
-                File newFile = new File(destination, entryName);
 
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Deflating" + archiveFile.getFilename());
-                    LOGGER.debug("Extracting file " + newFile.getAbsolutePath());
+                if (!archiveInputStream.canReadEntryData(entry)) {
+                    throw new IOException("Unsupported content of entry " + entry.getName());
+                }
+
+                boolean stored = countingInputStream != null && isStoredEntry(entry);
+                if (writers != null) {
+                    if (stored) {
+                        writers.transfer(fileInputStream.getChannel(), countingInputStream.getByteCount(),
+                                entry.getSize(), newFile);
+                    } else {
+                        writers.write(archiveInputStream, entry.getSize(), newFile);
+                    }
+                    continue;
                 }
 
-                // Make the directory structure
-                newFile.getParentFile().mkdirs();
                 FileOutputStream fileOutputStream = null;
                 try {
                     fileOutputStream = new FileOutputStream(newFile);
-                    IOUtils.copy(archiveInputStream, fileOutputStream);
+                    if (stored) {
+                        // Copy straight from the archive file, the archive stream skips the unread content
+                        transfer(fileInputStream.getChannel(), countingInputStream.getByteCount(), entry.getSize(),
+                                fileOutputStream.getChannel());
+                    } else {
+                        IOUtils.copy(archiveInputStream, fileOutputStream);
+                    }
                 } finally {
                     IOUtils.closeQuietly(fileOutputStream);
                 }
             }
+            if (writers != null) {
+                writers.await();
+            }
         } finally {
             IOUtils.closeQuietly(archiveInputStream);
+            IOUtils.closeQuietly(fileInputStream);
+        }
+        if (!pendingLinks.isEmpty()) {
+            writeLinks(pendingLinks);
+        }
+    }
+
+    /**
+     * Writes the content of links whose target was not extracted in place, reading the archive stream again up to
+     * the last target.
+     *
+     * @param links the position of the content of each link file.
+     */
+    private void writeLinks(Map<File, Integer> links) throws IOException {
+        if (archiveFile.isOpen()) {
+            throw new IOException("Link targets of " + links.keySet()
+                    + " were not extracted and the archive stream cannot be read again");
+        }
+        TreeMap<Integer, List<File>> filesByPosition = new TreeMap<Integer, List<File>>();
+        for (Map.Entry<File, Integer> link : links.entrySet()) {
+            List<File> files = filesByPosition.get(link.getValue());
+            if (files == null) {
+                files = new ArrayList<File>();
+                filesByPosition.put(link.getValue(), files);
+            }
+            files.add(link.getKey());
+        }
+
+        I archiveInputStream = createArchiveInputStream(openArchiveStream());
+        try {
+            int position = 0;
+            ArchiveEntry entry = archiveInputStream.getNextEntry();
+            for (; entry != null && !filesByPosition.isEmpty(); entry = archiveInputStream.getNextEntry(), position++) {
+                List<File> files = filesByPosition.remove(position);
+                if (files == null) {
+                    continue;
+                }
+                File first = files.get(0);
+                Files.createDirectories(first.getParentFile().toPath());
+                SparseFileMap sparseMap = getSparseMap(archiveInputStream);
+                if (sparseMap != null) {
+                    writeSparse(archiveInputStream, sparseMap, first);
+                } else if (!archiveInputStream.canReadEntryData(entry)) {
+                    throw new IOException("Unsupported content of entry " + entry.getName());
+                } else {
+                    FileOutputStream fileOutputStream = new FileOutputStream(first);
+                    try {
+                        IOUtils.copy(archiveInputStream, fileOutputStream);
+                    } finally {
+                        fileOutputStream.close();
+                    }
+                }
+                for (File file : files.subList(1, files.size())) {
+                    Files.createDirectories(file.getParentFile().toPath());
+                    Files.copy(first.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(archiveInputStream);
+        }
+        if (!filesByPosition.isEmpty()) {
+            throw new EOFException("Unexpected end of archive before entry " + filesByPosition.firstKey());
+        }
+    }
+
+    /**
+     * Extracts a file based archive by scanning its headers: the content of skipped entries is never read.
+     *
+     * @return <code>false</code> if the archive format cannot be scanned.
+     */
+    private boolean deflateSeekable(File file, File destination, String outputFilePattern, boolean flat,
+            PathMatcher matcher, ExtractionWriterPool writers) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            IArchiveScanner scanner = openScanner(channel);
+            if (scanner == null) {
+                return false;
+            }
+
+            // Offset and size of the content of each entry, for the links to entries not extracted in place
+            Map<String, long[]> contents = isSelective(outputFilePattern, flat) ? new HashMap<String, long[]>() : null;
+            for (ArchiveEntry entry = scanner.getNextEntry(); entry != null; entry = scanner.getNextEntry()) {
+                String linkTarget = getLinkTarget(entry);
+                if (contents != null && isContentEntry(entry)) {
+                    long[] content = linkTarget != null ? contents.get(linkTarget) : new long[] {
+                            isStoredEntry(entry) ? scanner.getDataOffset() : -1, scanner.getDataSize() };
+                    if (content != null) {
+                        contents.put(entry.getName(), content);
+                    }
+                }
+
+                File newFile = getTargetFile(entry, destination, outputFilePattern, flat, matcher, writers);
+                if (newFile == null) {
+                    continue;
+                }
+
+                if (linkTarget != null) {
+                    if (isExtractedInPlace(linkTarget, outputFilePattern, flat)) {
+                        link(newFile, destination, linkTarget, writers);
+                    } else {
+                        writeLink(channel, contents.get(linkTarget), newFile, linkTarget, writers);
+                    }
+                    continue;
+                }
+                String symbolicLinkTarget = getSymbolicLinkTarget(entry);
+                if (symbolicLinkTarget != null) {
+                    symbolicLink(newFile, destination, symbolicLinkTarget, writers);
+                    continue;
+                }
+
+                SparseFileMap sparseMap = scanner.getSparseMap();
+                if (sparseMap != null) {
+                    if (writers != null) {
+                        writers.await(newFile);
+                        Files.createDirectories(newFile.getParentFile().toPath());
+                    }
+                    writeSparse(channel, scanner.getDataOffset(), sparseMap, newFile);
+                    continue;
+                }
+
+                if (writers != null) {
+                    writers.transfer(channel, scanner.getDataOffset(), scanner.getDataSize(), newFile);
+                    continue;
+                }
+                FileOutputStream fileOutputStream = new FileOutputStream(newFile);
+                try {
+                    transfer(channel, scanner.getDataOffset(), scanner.getDataSize(), fileOutputStream.getChannel());
+                } finally {
+                    IOUtils.closeQuietly(fileOutputStream);
+                }
+            }
+            if (writers != null) {
+                writers.await();
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the content of a link whose target was not extracted in place, from the offset of the target content.
+     *
+     * @param content the offset and size of the target content, <code>null</code> if the target was not found.
+     */
+    private void writeLink(FileChannel channel, long[] content, File newFile, String linkTarget,
+            ExtractionWriterPool writers) throws IOException {
+        if (content == null) {
+            LOGGER.warn("Link target " + linkTarget + " of " + newFile + " not found in the archive");
+            return;
+        }
+        if (content[0] < 0) {
+            throw new IOException("Unsupported content of link target " + linkTarget + " of " + newFile);
+        }
+        if (writers != null) {
+            writers.transfer(channel, content[0], content[1], newFile);
+            return;
+        }
+        FileOutputStream fileOutputStream = new FileOutputStream(newFile);
+        try {
+            transfer(channel, content[0], content[1], fileOutputStream.getChannel());
+        } finally {
+            IOUtils.closeQuietly(fileOutputStream);
+        }
+    }
+
+    /**
+     * Writes the data segments of a sparse entry at their offsets in the given file, leaving the holes unwritten so
+     * that the file system can keep them sparse.
+     */
+    private static void writeSparse(FileChannel channel, long dataOffset, SparseFileMap map, File newFile)
+            throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(newFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel target = randomAccessFile.getChannel();
+            long position = dataOffset;
+            for (int segment = 0; segment < map.getSegmentCount(); segment++) {
+                target.position(map.getOffset(segment));
+                transfer(channel, position, map.getLength(segment), target);
+                position += map.getLength(segment);
+            }
+            randomAccessFile.setLength(map.getRealSize());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes the data segments of a sparse entry read from the archive stream, which holds them in order, at their
+     * offsets in the given file.
+     */
+    private static void writeSparse(InputStream in, SparseFileMap map, File newFile) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(newFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel target = randomAccessFile.getChannel();
+            OutputStream out = Channels.newOutputStream(target);
+            for (int segment = 0; segment < map.getSegmentCount(); segment++) {
+                target.position(map.getOffset(segment));
+                long copied = IOUtils.copyLarge(in, out, 0, map.getLength(segment));
+                if (copied < map.getLength(segment)) {
+                    throw new EOFException("Unexpected end of archive in sparse entry " + newFile.getName());
+                }
+            }
+            randomAccessFile.setLength(map.getRealSize());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the file the given entry is extracted to, making the directory structure. Directory entries are
+     * created directly. With writer threads, the directories are made by the writers.
+     *
+     * @return the file to write, <code>null</code> if the entry is skipped or is a directory.
+     * @throws IOException if the entry would be written outside of the destination.
+     */
+    private File getTargetFile(ArchiveEntry entry, File destination, String outputFilePattern, boolean flat,
+            PathMatcher matcher, ExtractionWriterPool writers) throws IOException {
+        String entryName = entry.getName();
+
+        // Is a directory
+        if (entry.isDirectory() && !flat) {
+            checkPath(destination, entryName);
+            File newDir = new File(destination, entryName);
+            if (writers != null) {
+                writers.mkdirs(newDir);
+            } else {
+                newDir.mkdirs();
+            }
+            return null;
+        }
+
+        // Output file pattern check
+        if (!isSelected(entryName, outputFilePattern)) {
+            return null;
+        }
+
+        // Remove directory strucutre if flat mode actived
+        if (flat) {
+            entryName = new File(entryName).getName();
+        }
+        checkPath(destination, entryName);
+        File newFile = new File(destination, entryName);
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Deflating" + archiveFile.getFilename());
+            LOGGER.debug("Extracting file " + newFile.getAbsolutePath());
+        }
+
+        // Make the directory structure, left to the writer of the file otherwise
+        if (writers == null) {
+            newFile.getParentFile().mkdirs();
+        }
+        return newFile;
+    }
+
+    /**
+     * Returns whether the entry of the given name is selected by the output file pattern.
+     */
+    private boolean isSelected(String entryName, String outputFilePattern) {
+        return StringUtils.isEmpty(outputFilePattern)
+                || matcher.match(outputFilePattern, new File(entryName).getName());
+    }
+
+    /**
+     * Returns whether some entries are not extracted at the path of their name, so that a link may point to content
+     * that is not in the destination.
+     */
+    private static boolean isSelective(String outputFilePattern, boolean flat) {
+        return flat || StringUtils.isNotEmpty(outputFilePattern);
+    }
+
+    /**
+     * Returns whether the entry of the given name is extracted at the path of its name, so that links to it can be
+     * made to the extracted file. In the flat mode a later entry of the same base name may replace it.
+     */
+    private boolean isExtractedInPlace(String entryName, String outputFilePattern, boolean flat) {
+        return !flat && isSelected(entryName, outputFilePattern);
+    }
+
+    /**
+     * Returns whether the given entry has content a hard link may point to.
+     */
+    private boolean isContentEntry(ArchiveEntry entry) {
+        return !entry.isDirectory() && getSymbolicLinkTarget(entry) == null;
+    }
+
+    /**
+     * Creates the given file as a hard link to a file extracted before, or as a copy of it if the file system has no
+     * hard links. The link is skipped if its target was not extracted before it, which a well formed archive never
+     * does.
+     */
+    private void link(File newFile, File destination, String linkTarget, ExtractionWriterPool writers)
+            throws IOException {
+        checkPath(destination, linkTarget);
+        File targetFile = new File(destination, linkTarget);
+        Path target = targetFile.toPath().toAbsolutePath();
+        if (writers != null) {
+            // Same file as submitted to the writers
+            writers.await(targetFile);
+            writers.await(newFile);
+            Files.createDirectories(newFile.getParentFile().toPath());
+        }
+        if (!Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+            LOGGER.warn("Link target " + target + " of " + newFile + " was not extracted");
+            return;
+        }
+
+        Files.deleteIfExists(newFile.toPath());
+        try {
+            Files.createLink(newFile.toPath(), target);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(target, newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Creates the given file as a symbolic link. Links whose target is outside of the destination, once the links
+     * extracted before are followed, are skipped. No later entry is written through a link, see
+     * {@link #checkPath(File, String)}.
+     */
+    private void symbolicLink(File newFile, File destination, String linkTarget, ExtractionWriterPool writers)
+            throws IOException {
+        Path root = destination.toPath().toRealPath();
+        Path link = newFile.toPath().toAbsolutePath();
+        Path target = resolveLinks(link.getParent().resolve(linkTarget));
+        if (target == null || !target.startsWith(root)) {
+            LOGGER.warn("Symbolic link " + newFile + " to " + linkTarget + " points outside of the destination");
+            return;
+        }
+        if (writers != null) {
+            // No pending write may go through the link once created
+            writers.await();
+            Files.createDirectories(link.getParent());
+        }
+
+        Files.deleteIfExists(link);
+        try {
+            Files.createSymbolicLink(link, link.getFileSystem().getPath(linkTarget));
+        } catch (UnsupportedOperationException | IOException e) {
+            LOGGER.warn("Unable to create the symbolic link " + newFile + " to " + linkTarget, e);
+        }
+    }
+
+    /**
+     * Checks that the given entry name has no parent reference and that none of its parent directories within the
+     * destination is a symbolic link, so that the entry cannot be written outside of the destination through a link
+     * extracted before.
+     *
+     * @throws IOException if the entry would not be written in the destination.
+     */
+    private static void checkPath(File destination, String entryName) throws IOException {
+        Path name = destination.toPath().getFileSystem().getPath(entryName);
+        Path parent = destination.toPath();
+        int count = name.getNameCount();
+        for (int i = 0; i < count; i++) {
+            if (name.getName(i).toString().equals("..")) {
+                throw new IOException("Invalid entry " + entryName + " with a parent reference");
+            }
+            if (i < count - 1) {
+                parent = parent.resolve(name.getName(i));
+                if (Files.isSymbolicLink(parent)) {
+                    throw new IOException("Entry " + entryName + " would be written through the symbolic link "
+                            + parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the given absolute path as the file system would: the symbolic links met along the path are followed
+     * before the next parent reference is applied.
+     *
+     * @return the resolved path, <code>null</code> if a link cannot be resolved.
+     */
+    private static Path resolveLinks(Path path) {
+        Path resolved = path.getRoot();
+        for (Path name : path) {
+            String element = name.toString();
+            if (element.equals("..")) {
+                resolved = resolved.getParent() != null ? resolved.getParent() : resolved;
+            } else if (!element.equals(".")) {
+                resolved = resolved.resolve(name);
+                if (Files.isSymbolicLink(resolved)) {
+                    try {
+                        resolved = resolved.toRealPath();
+                    } catch (IOException e) {
+                        // Dangling or looping link
+                        return null;
+                    }
+                }
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the data segments of the current entry of the archive stream if it is sparse, its content being the
+     * segments put end to end. The default implementation returns <code>null</code>.
+     *
+     * @param archiveInputStream the archive stream positioned at the entry content.
+     * @return the data segments, <code>null</code> if the entry is not sparse.
+     */
+    protected SparseFileMap getSparseMap(I archiveInputStream) {
+        return null;
+    }
+
+    /**
+     * Returns the target of the given entry if it is a symbolic link. The default implementation returns
+     * <code>null</code>.
+     *
+     * @param entry the archive entry.
+     * @return the target of the link, <code>null</code> if the entry is not a symbolic link.
+     */
+    protected String getSymbolicLinkTarget(ArchiveEntry entry) {
+        return null;
+    }
+
+    /**
+     * Returns the name of the entry the given entry is a hard link to. The default implementation returns
+     * <code>null</code>.
+     *
+     * @param entry the archive entry.
+     * @return the name of the linked entry, <code>null</code> if the entry is not a hard link.
+     */
+    protected String getLinkTarget(ArchiveEntry entry) {
+        return null;
+    }
+
+    /**
+     * Returns whether the content of the given entry is stored uncompressed right after its header, so that it can
+     * be copied straight from the archive file. The default implementation returns <code>false</code>.
+     *
+     * @param entry the archive entry.
+     * @return <code>true</code> if the entry content is stored as is.
+     */
+    protected boolean isStoredEntry(ArchiveEntry entry) {
+        return false;
+    }
+
+    /**
+     * Returns the archive file if its entries can be read at their offsets, that is if the archive resource is an
+     * uncompressed file on disk.
+     *
+     * @return the archive file, <code>null</code> if the archive can only be read sequentially.
+     * @throws IOException if an io exception occures.
+     */
+    private File getSeekableFile() throws IOException {
+        File file = getLocalFile();
+        if (file == null) {
+            return null;
+        }
+        Compression fileCompression = compression != null ? compression : Compression.detect(file);
+        return fileCompression == Compression.NONE ? file : null;
+    }
+
+    /**
+     * Opens the archive resource, decompressing it on a dedicated thread when it is compressed.
+     *
+     * @return the archive stream.
+     * @throws IOException if an io exception occures.
+     */
+    private InputStream openArchiveStream() throws IOException {
+        InputStream inputStream = new BufferedInputStream(archiveFile.getInputStream());
+        try {
+            Compression streamCompression = compression != null ? compression : Compression.detect(inputStream);
+            if (streamCompression == Compression.NONE) {
+                return inputStream;
+            }
+            InputStream parallelInputStream = streamCompression == Compression.GZIP && decompressionThreads > 1
+                    ? openParallelGzipStream() : null;
+            if (parallelInputStream != null) {
+                inputStream.close();
+                return parallelInputStream;
+            }
+            return new BufferRingInputStream(streamCompression.decompress(inputStream));
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream inflating the members of the gzip archive file in parallel.
+     *
+     * @return the stream, <code>null</code> if the archive is not a file made of independent members.
+     */
+    private InputStream openParallelGzipStream() throws IOException {
+        File file = getLocalFile();
+        if (file == null) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            List<long[]> members = ParallelGzipInputStream.scanMembers(channel);
+            if (members != null) {
+                return new ParallelGzipInputStream(channel, members, decompressionThreads);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Returns the archive file if the archive resource is a file on disk.
+     *
+     * @return the archive file, <code>null</code> if the resource is not a file.
+     */
+    protected File getLocalFile() {
+        try {
+            File file = archiveFile.getFile();
+            return file.isFile() ? file : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Transfers a region of the source channel into the target channel.
+     *
+     * @param source the source channel.
+     * @param position the position of the first byte to transfer.
+     * @param count the number of bytes to transfer.
+     * @param target the target channel.
+     * @throws IOException if an io exception occures.
+     */
+    static void transfer(FileChannel source, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long result = source.transferTo(position + transferred, count - transferred, target);
+            if (result <= 0) {
+                throw new EOFException("Unexpected end of archive after " + transferred + " of " + count + " bytes");
+            }
+            transferred += result;
         }
     }
 
@@ -122,38 +939,126 @@ public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> imp
      * @return
      * @throws IOException
      */
-    @SuppressWarnings("resource")
     public InputStream deflate(String outputFilePattern) throws IOException {
-        AntPathMatcher matcher = new AntPathMatcher();
-        I archiveInputStream = null;
+        InputStream entryInputStream = openEntryStream(outputFilePattern);
+        if (entryInputStream == null) {
+            return null;
+        }
         try {
-            archiveInputStream = createArchiveInputStream(archiveFile.getInputStream());
+            return IOUtils.toBufferedInputStream(entryInputStream);
+        } finally {
+            IOUtils.closeQuietly(entryInputStream);
+        }
+    }
 
-            for (ArchiveEntry entry = archiveInputStream.getNextEntry(); entry != null; entry = archiveInputStream.getNextEntry()) {
+    /**
+     * Opens a stream over the content of the first entry whose name matches the <code>outputFilePattern</code>
+     * parameter. Unlike {@link #deflate(String)} the content is not buffered: it is read from the archive as the
+     * returned stream is consumed, and the archive stays open until the stream is closed.
+     *
+     * <p>Stored entries of file based archives are read with positional reads on the archive channel, see
+     * {@link ChannelSliceInputStream}.
+     *
+     * @param outputFilePattern the pattern of the entry name, <code>null</code> for the first entry.
+     * @return the entry stream to close by the caller, <code>null</code> if no entry matches.
+     * @throws IOException if an io exception occures.
+     */
+    public InputStream openEntryStream(String outputFilePattern) throws IOException {
+        ArchiveIndex.Entry located = locate(outputFilePattern, matcher);
+        if (located != null) {
+            if (located == NOT_FOUND) {
+                return null;
+            }
+            if (located.isStored() && blockIndex != null) {
+                FileChannel channel = FileChannel.open(getLocalFile().toPath(), StandardOpenOption.READ);
+                return blockIndex.openStream(channel, located.getDataOffset(), located.getSize());
+            }
+            if (located.isStored()) {
+                FileChannel channel = FileChannel.open(getSeekableFile().toPath(), StandardOpenOption.READ);
+                return new ChannelSliceInputStream(channel, located.getDataOffset(), located.getSize());
+            }
+        }
+
+        // Position of the entry holding the content of each name read so far, hard links pointing to their target
+        Map<String, Integer> contentPositions = new HashMap<String, Integer>();
+        Integer linkedPosition = null;
+        I archiveInputStream = createArchiveInputStream(openArchiveStream());
+        boolean found = false;
+        try {
+            int position = 0;
+            for (ArchiveEntry entry = archiveInputStream.getNextEntry(); entry != null; entry = archiveInputStream.getNextEntry(), position++) {
 
                 String entryName = entry.getName();
+                String linkTarget = getLinkTarget(entry);
+                Integer contentPosition = linkTarget != null ? contentPositions.get(linkTarget) : position;
+                contentPositions.put(entryName, contentPosition);
 
                 // Output file pattern check
                 if (StringUtils.isNotEmpty(outputFilePattern)
                         && !matcher.match(outputFilePattern, new File(entryName).getName())) {
                     continue;
                 }
-                return IOUtils.toBufferedInputStream(archiveInputStream);
+                if (linkTarget != null) {
+                    if (contentPosition == null) {
+                        throw new IOException("Link target " + linkTarget + " of entry " + entryName + " not found");
+                    }
+                    // The content was skipped, it is read again from the beginning of the archive
+                    linkedPosition = contentPosition;
+                    break;
+                }
+                if (!archiveInputStream.canReadEntryData(entry)) {
+                    throw new IOException("Unsupported content of entry " + entryName);
+                }
+                found = true;
+                // The archive stream ends with the entry, closing the bounded stream closes the archive
+                return new BoundedInputStream(archiveInputStream, entry.getSize());
             }
         } finally {
-            IOUtils.closeQuietly(archiveInputStream);
+            if (!found) {
+                IOUtils.closeQuietly(archiveInputStream);
+            }
+        }
+        return linkedPosition != null ? openEntryStream(linkedPosition) : null;
+    }
+
+    /**
+     * Opens a stream over the content of the entry at the given position of the archive stream.
+     */
+    private InputStream openEntryStream(int position) throws IOException {
+        I archiveInputStream = createArchiveInputStream(openArchiveStream());
+        boolean found = false;
+        try {
+            ArchiveEntry entry = archiveInputStream.getNextEntry();
+            for (int i = 0; i < position && entry != null; i++) {
+                entry = archiveInputStream.getNextEntry();
+            }
+            if (entry == null) {
+                throw new EOFException("Unexpected end of archive before entry " + position);
+            }
+            if (!archiveInputStream.canReadEntryData(entry)) {
+                throw new IOException("Unsupported content of entry " + entry.getName());
+            }
+            found = true;
+            return new BoundedInputStream(archiveInputStream, entry.getSize());
+        } finally {
+            if (!found) {
+                IOUtils.closeQuietly(archiveInputStream);
+            }
         }
-        return null;
     }
 
     @SuppressWarnings("resource")
     public boolean entryExist(String outputFilePattern) throws IOException {
         Assert.hasText(outputFilePattern);
-        AntPathMatcher matcher = new AntPathMatcher();
+        ArchiveIndex.Entry located = locate(outputFilePattern, matcher);
+        if (located != null) {
+            return located != NOT_FOUND;
+        }
+
         I archiveInputStream = null;
 
         try {
-            archiveInputStream = createArchiveInputStream(archiveFile.getInputStream());
+            archiveInputStream = createArchiveInputStream(openArchiveStream());
 
             for (ArchiveEntry entry = archiveInputStream.getNextEntry(); entry != null; entry = archiveInputStream.getNextEntry()) {
 
@@ -172,4 +1077,86 @@ public abstract class AbstractArchiveExtractor<I extends ArchiveInputStream> imp
         }
         return false;
     }
+
+    /**
+     * Locates the first entry whose name matches the given pattern through the index or by scanning the headers of
+     * the archive file.
+     *
+     * @return the located entry, an entry without name if no entry matches, or <code>null</code> if the archive can
+     * only be read sequentially.
+     */
+    private ArchiveIndex.Entry locate(String outputFilePattern, PathMatcher matcher) throws IOException {
+        ArchiveIndex index = getIndex();
+        if (index != null) {
+            ArchiveIndex.Entry entry = index.find(outputFilePattern, matcher);
+            return entry != null ? entry : NOT_FOUND;
+        }
+
+        File file = getSeekableFile();
+        if (file == null) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            IArchiveScanner scanner = openScanner(channel);
+            if (scanner == null) {
+                return null;
+            }
+            // Entries scanned so far, where hard links find their target
+            ArchiveIndex scanned = new ArchiveIndex();
+            for (ArchiveEntry entry = scanner.getNextEntry(); entry != null; entry = scanner.getNextEntry()) {
+                ArchiveIndex.Entry indexEntry = addEntry(scanned, entry, scanner);
+                if (StringUtils.isNotEmpty(outputFilePattern)
+                        && !matcher.match(outputFilePattern, indexEntry.getBaseName())) {
+                    continue;
+                }
+                return indexEntry;
+            }
+            return NOT_FOUND;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the index of the archive, loading or building it if needed.
+     *
+     * @return the index, <code>null</code> if disabled or not available.
+     * @throws IOException if an io exception occures.
+     */
+    private ArchiveIndex getIndex() throws IOException {
+        File file = useIndex ? getLocalFile() : null;
+        if (file == null) {
+            return null;
+        }
+        if (index != null && indexedLength == file.length() && indexedLastModified == file.lastModified()) {
+            return index;
+        }
+
+        indexedLength = file.length();
+        indexedLastModified = file.lastModified();
+        blockIndex = null;
+        if (getSeekableFile() == null) {
+            // Compressed archives are only indexed when written with independent blocks
+            blockIndex = Compression.detect(file) == Compression.GZIP ? GzipBlockIndex.load(file) : null;
+            index = blockIndex != null ? ArchiveIndex.load(file) : null;
+            if (index == null) {
+                blockIndex = null;
+            }
+            return index;
+        }
+
+        index = ArchiveIndex.load(file);
+        if (index == null) {
+            index = buildIndex(file);
+            if (index != null) {
+                try {
+                    index.save(file);
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to save the index of " + file, e);
+                }
+            }
+        }
+        return index;
+    }
 }
@@ -23,6 +23,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +46,11 @@ import org.apache.commons.lang.StringUtils;
  * <li><code>org/&#42;&#42;/servlet/bla.jsp</code> - matches <code>org/springframework/servlet/bla.jsp</code> but also
  * <code>org/springframework/testing/servlet/bla.jsp</code> and <code>org/servlet/bla.jsp</code></li> </ul>
  *
+ * <p>The tokenized patterns and the compiled pattern segments are cached, so that matching many paths against the
+ * same patterns neither tokenizes the patterns nor compiles regular expressions again. The cache is bounded: unless
+ * enabled with {@link #setCachePatterns(boolean)}, it turns itself off once it holds more than 65536 patterns, which
+ * means that the patterns are generated and unlikely to be matched again.
+ *
  * @author Alef Arendsen
  * @author Juergen Hoeller
  * @author Rob Harrop
@@ -57,11 +64,68 @@ public class AntPathMatcher implements PathMatcher {
     /** Default path separator: "/" */
     public static final String DEFAULT_PATH_SEPARATOR = "/";
 
+    /** Number of cached patterns turning the cache off, or clearing it when the cache is explicitly enabled. */
+    private static final int CACHE_TURNOFF_THRESHOLD = 65536;
+
     private String pathSeparator = DEFAULT_PATH_SEPARATOR;
 
+    /** Whether patterns are cached, <code>null</code> until the cache turns itself off. */
+    private volatile Boolean cachePatterns;
+
+    private final Map<String, String[]> tokenizedPatternCache = new ConcurrentHashMap<String, String[]>(256);
+
+    private final Map<String, AntPathStringMatcher> stringMatcherCache =
+            new ConcurrentHashMap<String, AntPathStringMatcher>(256);
+
+    private final LongAdder cacheHits = new LongAdder();
+
+    private final LongAdder cacheMisses = new LongAdder();
+
     /** Set the path separator to use for pattern parsing. Default is "/", as in Ant. */
     public void setPathSeparator(String pathSeparator) {
         this.pathSeparator = (pathSeparator != null ? pathSeparator : DEFAULT_PATH_SEPARATOR);
+        clearPatternCache();
+    }
+
+    /**
+     * Specify whether to cache the tokenized patterns and the compiled pattern segments. <code>true</code> keeps the
+     * cache on, clearing it whenever it grows beyond its bound; <code>false</code> turns it off. By default, the cache
+     * turns itself off when too many different patterns are matched.
+     */
+    public void setCachePatterns(boolean cachePatterns) {
+        this.cachePatterns = cachePatterns;
+        if (!cachePatterns) {
+            clearPatternCache();
+        }
+    }
+
+    /**
+     * @return the number of pattern lookups served by the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of pattern lookups that tokenized or compiled a pattern.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Clears the cache grown beyond its bound, turning it off unless it is explicitly enabled.
+     */
+    private void evictPatternCache(Boolean cachePatterns) {
+        if (!Boolean.TRUE.equals(cachePatterns)) {
+            this.cachePatterns = Boolean.FALSE;
+        }
+        clearPatternCache();
+    }
+
+    private void clearPatternCache() {
+        this.tokenizedPatternCache.clear();
+        this.stringMatcherCache.clear();
     }
 
     public boolean isPattern(String path) {
@@ -90,28 +154,33 @@ public class AntPathMatcher implements PathMatcher {
             return false;
         }
 
-        String[] pattDirs = tokenizeToStringArray(pattern, this.pathSeparator);
-        String[] pathDirs = tokenizeToStringArray(path, this.pathSeparator);
+        String[] pattDirs = tokenizePattern(pattern);
 
         int pattIdxStart = 0;
         int pattIdxEnd = pattDirs.length - 1;
-        int pathIdxStart = 0;
-        int pathIdxEnd = pathDirs.length - 1;
+        // The path segments left to match are the ones between these offsets
+        int pathStart = 0;
+        int pathEnd = path.length();
 
         // Match all elements up to the first **
-        while (pattIdxStart <= pattIdxEnd && pathIdxStart <= pathIdxEnd) {
+        while (pattIdxStart <= pattIdxEnd) {
+            int segmentStart = nextSegmentStart(path, pathStart, pathEnd);
+            if (segmentStart == -1) {
+                break;
+            }
             String patDir = pattDirs[pattIdxStart];
             if ("**".equals(patDir)) {
                 break;
             }
-            if (!matchStrings(patDir, pathDirs[pathIdxStart], uriTemplateVariables)) {
+            int segmentEnd = segmentEnd(path, segmentStart, pathEnd);
+            if (!matchStrings(patDir, path, segmentStart, segmentEnd, uriTemplateVariables)) {
                 return false;
             }
             pattIdxStart++;
-            pathIdxStart++;
+            pathStart = segmentEnd;
         }
 
-        if (pathIdxStart > pathIdxEnd) {
+        if (nextSegmentStart(path, pathStart, pathEnd) == -1) {
             // Path is exhausted, only match if rest of pattern is * or **'s
             if (pattIdxStart > pattIdxEnd) {
                 return (pattern.endsWith(this.pathSeparator) ? path.endsWith(this.pathSeparator) : !path.endsWith(this.pathSeparator));
@@ -137,18 +206,23 @@ public class AntPathMatcher implements PathMatcher {
         }
 
         // up to last '**'
-        while (pattIdxStart <= pattIdxEnd && pathIdxStart <= pathIdxEnd) {
+        while (pattIdxStart <= pattIdxEnd) {
+            int segmentEnd = previousSegmentEnd(path, pathStart, pathEnd);
+            if (segmentEnd == -1) {
+                break;
+            }
             String patDir = pattDirs[pattIdxEnd];
             if (patDir.equals("**")) {
                 break;
             }
-            if (!matchStrings(patDir, pathDirs[pathIdxEnd], uriTemplateVariables)) {
+            int segmentStart = segmentStart(path, pathStart, segmentEnd);
+            if (!matchStrings(patDir, path, segmentStart, segmentEnd, uriTemplateVariables)) {
                 return false;
             }
             pattIdxEnd--;
-            pathIdxEnd--;
+            pathEnd = segmentStart;
         }
-        if (pathIdxStart > pathIdxEnd) {
+        if (nextSegmentStart(path, pathStart, pathEnd) == -1) {
             // String is exhausted
             for (int i = pattIdxStart; i <= pattIdxEnd; i++) {
                 if (!pattDirs[i].equals("**")) {
@@ -158,7 +232,7 @@ public class AntPathMatcher implements PathMatcher {
             return true;
         }
 
-        while (pattIdxStart != pattIdxEnd && pathIdxStart <= pathIdxEnd) {
+        while (pattIdxStart != pattIdxEnd && nextSegmentStart(path, pathStart, pathEnd) != -1) {
             int patIdxTmp = -1;
             for (int i = pattIdxStart + 1; i <= pattIdxEnd; i++) {
                 if (pattDirs[i].equals("**")) {
@@ -172,29 +246,33 @@ public class AntPathMatcher implements PathMatcher {
                 continue;
             }
             // Find the pattern between padIdxStart & padIdxTmp in str between
-            // strIdxStart & strIdxEnd
+            // pathStart & pathEnd
             int patLength = (patIdxTmp - pattIdxStart - 1);
-            int strLength = (pathIdxEnd - pathIdxStart + 1);
-            int foundIdx = -1;
+            int strLength = countSegments(path, pathStart, pathEnd);
+            int foundEnd = -1;
 
+            int candidate = nextSegmentStart(path, pathStart, pathEnd);
             strLoop: for (int i = 0; i <= strLength - patLength; i++) {
+                int segmentStart = candidate;
+                candidate = nextSegmentStart(path, segmentEnd(path, candidate, pathEnd), pathEnd);
                 for (int j = 0; j < patLength; j++) {
-                    String subPat = pattDirs[pattIdxStart + j + 1];
-                    String subStr = pathDirs[pathIdxStart + i + j];
-                    if (!matchStrings(subPat, subStr, uriTemplateVariables)) {
+                    int segmentEnd = segmentEnd(path, segmentStart, pathEnd);
+                    if (!matchStrings(pattDirs[pattIdxStart + j + 1], path, segmentStart, segmentEnd,
+                            uriTemplateVariables)) {
                         continue strLoop;
                     }
+                    segmentStart = j + 1 < patLength ? nextSegmentStart(path, segmentEnd, pathEnd) : segmentEnd;
                 }
-                foundIdx = pathIdxStart + i;
+                foundEnd = segmentStart;
                 break;
             }
 
-            if (foundIdx == -1) {
+            if (foundEnd == -1) {
                 return false;
             }
 
             pattIdxStart = patIdxTmp;
-            pathIdxStart = foundIdx + patLength;
+            pathStart = foundEnd;
         }
 
         for (int i = pattIdxStart; i <= pattIdxEnd; i++) {
@@ -207,16 +285,149 @@ public class AntPathMatcher implements PathMatcher {
     }
 
     /**
-     * Tests whether or not a string matches against a pattern. The pattern may contain two special characters:<br> '*'
-     * means zero or more characters<br> '?' means one and only one character
+     * Tests whether or not a path segment matches against a pattern. The pattern may contain two special
+     * characters:<br> '*' means zero or more characters<br> '?' means one and only one character
      *
      * @param pattern pattern to match against. Must not be <code>null</code>.
-     * @param str string which must be matched against the pattern. Must not be <code>null</code>.
-     * @return <code>true</code> if the string matches against the pattern, or <code>false</code> otherwise.
+     * @param path the path holding the segment. Must not be <code>null</code>.
+     * @param start the start of the segment in the path.
+     * @param end the end of the segment in the path, exclusive.
+     * @return <code>true</code> if the segment matches against the pattern, or <code>false</code> otherwise.
      */
-    private boolean matchStrings(String pattern, String str, Map<String, String> uriTemplateVariables) {
-        AntPathStringMatcher matcher = new AntPathStringMatcher(pattern, str, uriTemplateVariables);
-        return matcher.matchStrings();
+    private boolean matchStrings(String pattern, String path, int start, int end,
+            Map<String, String> uriTemplateVariables) {
+        return getStringMatcher(pattern).matchStrings(path, start, end, uriTemplateVariables);
+    }
+
+    // The path is walked by offsets instead of being tokenized: a segment is a run of characters without separator,
+    // whose leading and trailing whitespace is left out, and whitespace-only runs are no segments, exactly as
+    // tokenizeToStringArray splits and trims the path.
+
+    private boolean isSeparator(char c) {
+        return this.pathSeparator.indexOf(c) != -1;
+    }
+
+    /**
+     * Returns the start of the first segment between the given offsets, -1 if there is none.
+     */
+    private int nextSegmentStart(String path, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = path.charAt(i);
+            if (c > ' ' && !isSeparator(c)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the segment starting at the given offset.
+     */
+    private int segmentEnd(String path, int start, int to) {
+        int end = start;
+        for (int i = start; i < to; i++) {
+            char c = path.charAt(i);
+            if (isSeparator(c)) {
+                break;
+            }
+            if (c > ' ') {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the end of the last segment between the given offsets, -1 if there is none.
+     */
+    private int previousSegmentEnd(String path, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            char c = path.charAt(i);
+            if (c > ' ' && !isSeparator(c)) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the start of the segment ending at the given offset.
+     */
+    private int segmentStart(String path, int from, int end) {
+        int start = end;
+        for (int i = end - 1; i >= from; i--) {
+            char c = path.charAt(i);
+            if (isSeparator(c)) {
+                break;
+            }
+            if (c > ' ') {
+                start = i;
+            }
+        }
+        return start;
+    }
+
+    private int countSegments(String path, int from, int to) {
+        int count = 0;
+        for (int start = nextSegmentStart(path, from, to); start != -1;
+                start = nextSegmentStart(path, segmentEnd(path, start, to), to)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Tokenize the given pattern into segments, using the cache when it is on.
+     *
+     * @param pattern the pattern to tokenize
+     * @return the tokenized pattern parts
+     */
+    protected String[] tokenizePattern(String pattern) {
+        Boolean cachePatterns = this.cachePatterns;
+        boolean cached = cachePatterns == null || cachePatterns.booleanValue();
+        String[] tokenized = cached ? this.tokenizedPatternCache.get(pattern) : null;
+        if (tokenized != null) {
+            this.cacheHits.increment();
+            return tokenized;
+        }
+        tokenized = tokenizeToStringArray(pattern, this.pathSeparator);
+        if (cached) {
+            this.cacheMisses.increment();
+            if (this.tokenizedPatternCache.size() >= CACHE_TURNOFF_THRESHOLD) {
+                evictPatternCache(cachePatterns);
+            }
+            if (!Boolean.FALSE.equals(this.cachePatterns)) {
+                this.tokenizedPatternCache.put(pattern, tokenized);
+            }
+        }
+        return tokenized;
+    }
+
+    /**
+     * Return the compiled matcher of the given pattern segment, using the cache when it is on.
+     *
+     * @param pattern the pattern segment
+     * @return the string matcher
+     */
+    private AntPathStringMatcher getStringMatcher(String pattern) {
+        Boolean cachePatterns = this.cachePatterns;
+        boolean cached = cachePatterns == null || cachePatterns.booleanValue();
+        AntPathStringMatcher matcher = cached ? this.stringMatcherCache.get(pattern) : null;
+        if (matcher != null) {
+            this.cacheHits.increment();
+            return matcher;
+        }
+        matcher = new AntPathStringMatcher(pattern);
+        if (cached) {
+            this.cacheMisses.increment();
+            if (this.stringMatcherCache.size() >= CACHE_TURNOFF_THRESHOLD) {
+                evictPatternCache(cachePatterns);
+            }
+            if (!Boolean.FALSE.equals(this.cachePatterns)) {
+                this.stringMatcherCache.put(pattern, matcher);
+            }
+        }
+        return matcher;
     }
 
     /**
@@ -23,12 +23,17 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Package-protected helper class for {@link AntPathMatcher}. Tests whether or not a string matches against a pattern
- * using a regular expression.
+ * Package-protected helper class for {@link AntPathMatcher}. Tests whether or not a string matches against a pattern.
  *
  * <p>The pattern may contain special characters: '*' means zero or more characters; '?' means one and only one
  * character; '{' and '}' indicate a URI template pattern.
  *
+ * <p>Only URI template patterns are compiled to a regular expression. Plain patterns, made of literals, '*' and '?',
+ * are matched by comparing their literal prefix and suffix, then by an iterative wildcard matching of the middle,
+ * which creates no object. As with the regular expression, wildcards do not match line terminators.
+ *
+ * <p>The pattern is compiled once, so that an instance can be cached and used concurrently to match many strings.
+ *
  * @author Arjen Poutsma
  * @since 3.0
  */
@@ -38,19 +43,69 @@ class AntPathStringMatcher {
 
     private static final String DEFAULT_VARIABLE_PATTERN = "(.*)";
 
-    private final Pattern pattern;
+    /**
+     * The plain pattern, <code>null</code> for URI template patterns.
+     */
+    private final String glob;
 
-    private String str;
+    /**
+     * Whether the plain pattern holds wildcards.
+     */
+    private final boolean wildcard;
 
-    private final List<String> variableNames = new LinkedList<String>();
+    /**
+     * Number of literal characters before the first wildcard of the plain pattern.
+     */
+    private final int prefixLength;
+
+    /**
+     * Number of literal characters after the last wildcard of the plain pattern.
+     */
+    private final int suffixLength;
+
+    /**
+     * Whether the plain pattern is only made of '*' between its prefix and suffix, such as <code>*.mp4</code>.
+     */
+    private final boolean starsOnly;
 
-    private final Map<String, String> uriTemplateVariables;
+    /**
+     * Regular expression of the pattern, compiled on first use for plain patterns.
+     */
+    private volatile Pattern pattern;
+
+    private final List<String> variableNames = new LinkedList<String>();
 
     /** Construct a new instance of the <code>AntPatchStringMatcher</code>. */
-    AntPathStringMatcher(String pattern, String str, Map<String, String> uriTemplateVariables) {
-        this.str = str;
-        this.uriTemplateVariables = uriTemplateVariables;
-        this.pattern = createPattern(pattern);
+    AntPathStringMatcher(String pattern) {
+        if (pattern.indexOf('{') != -1) {
+            this.glob = null;
+            this.wildcard = true;
+            this.prefixLength = 0;
+            this.suffixLength = 0;
+            this.starsOnly = false;
+            this.pattern = createPattern(pattern);
+            return;
+        }
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                if (first == -1) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        this.glob = pattern;
+        this.wildcard = first != -1;
+        this.prefixLength = wildcard ? first : pattern.length();
+        this.suffixLength = wildcard ? pattern.length() - last - 1 : 0;
+        boolean stars = wildcard;
+        for (int i = first + 1; stars && i <= last; i++) {
+            stars = pattern.charAt(i) == '*';
+        }
+        this.starsOnly = stars && pattern.charAt(first) == '*';
     }
 
     private Pattern createPattern(String pattern) {
@@ -94,10 +149,28 @@ class AntPathStringMatcher {
     /**
      * Main entry point.
      *
+     * @param str the string to match.
+     * @param uriTemplateVariables the map receiving the template variables, may be <code>null</code>.
      * @return <code>true</code> if the string matches against the pattern, or <code>false</code> otherwise.
      */
-    public boolean matchStrings() {
-        Matcher matcher = pattern.matcher(str);
+    public boolean matchStrings(String str, Map<String, String> uriTemplateVariables) {
+        return matchStrings(str, 0, str.length(), uriTemplateVariables);
+    }
+
+    /**
+     * Tests whether a region of the given string matches against the pattern, as the substring would.
+     *
+     * @param str the string holding the region to match.
+     * @param start the start of the region.
+     * @param end the end of the region, exclusive.
+     * @param uriTemplateVariables the map receiving the template variables, may be <code>null</code>.
+     * @return <code>true</code> if the region matches against the pattern, or <code>false</code> otherwise.
+     */
+    public boolean matchStrings(String str, int start, int end, Map<String, String> uriTemplateVariables) {
+        if (glob != null) {
+            return matchGlob(str, start, end);
+        }
+        Matcher matcher = pattern.matcher(str).region(start, end);
         if (matcher.matches()) {
             if (uriTemplateVariables != null) {
                 for (int i = 1; i <= matcher.groupCount(); i++) {
@@ -112,4 +185,81 @@ class AntPathStringMatcher {
         }
     }
 
+    /**
+     * Matches a region of the given string against the plain pattern: literal prefix and suffix first, then the
+     * middle of the pattern with the usual backtracking to the last '*'.
+     */
+    private boolean matchGlob(String str, int start, int end) {
+        int length = end - start;
+        if (!wildcard) {
+            return length == glob.length() && str.regionMatches(start, glob, 0, length);
+        }
+        int patternEnd = glob.length() - suffixLength;
+        int strEnd = end - suffixLength;
+        if (length < prefixLength + suffixLength || !str.regionMatches(start, glob, 0, prefixLength)
+                || !str.regionMatches(strEnd, glob, patternEnd, suffixLength)) {
+            return false;
+        }
+        if (starsOnly) {
+            for (int i = start + prefixLength; i < strEnd; i++) {
+                if (isLineTerminator(str.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int patternIndex = prefixLength;
+        int strIndex = start + prefixLength;
+        int star = -1;
+        int starEnd = 0;
+        while (strIndex < strEnd) {
+            if (patternIndex < patternEnd) {
+                char p = glob.charAt(patternIndex);
+                if (p == '*') {
+                    star = patternIndex++;
+                    starEnd = strIndex;
+                    continue;
+                }
+                char c = str.charAt(strIndex);
+                if (p == '?' ? !isLineTerminator(c) : p == c) {
+                    patternIndex++;
+                    // '?' matches a whole code point, as '.' does, so a surrogate pair is never split
+                    strIndex += p == '?' ? Character.charCount(str.codePointAt(strIndex)) : 1;
+                    continue;
+                }
+            }
+            if (star == -1) {
+                return false;
+            }
+            if (isLineTerminator(str.charAt(starEnd))) {
+                // The last '*' cannot span it, an earlier one might: left to the regular expression
+                return matchPattern(str, start, end);
+            }
+            patternIndex = star + 1;
+            starEnd += Character.charCount(str.codePointAt(starEnd));
+            strIndex = starEnd;
+        }
+        while (patternIndex < patternEnd && glob.charAt(patternIndex) == '*') {
+            patternIndex++;
+        }
+        return patternIndex == patternEnd;
+    }
+
+    private boolean matchPattern(String str, int start, int end) {
+        Pattern compiled = pattern;
+        if (compiled == null) {
+            compiled = createPattern(glob);
+            pattern = compiled;
+        }
+        return compiled.matcher(str).region(start, end).matches();
+    }
+
+    /**
+     * Returns whether the character is a line terminator, which '.' does not match in a regular expression.
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
 }
\ No newline at end of file
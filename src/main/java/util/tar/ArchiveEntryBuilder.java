@@ -0,0 +1,112 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Builder of a regular file entry whose content does not come from a file. The entry is added to its writer by one
+ * of the <code>write</code> methods, for example:
+ *
+ * <pre>
+ * writer.newEntry("reports/daily.csv").mode(0600).lastModified(time).write(report);
+ * </pre>
+ */
+public class ArchiveEntryBuilder {
+
+    /**
+     * Permission bits of the entries whose mode is not set.
+     */
+    public static final int DEFAULT_MODE = 0644;
+
+    private final IArchiveWriter writer;
+
+    private final String name;
+
+    private int mode = DEFAULT_MODE;
+
+    private long lastModified = System.currentTimeMillis();
+
+    /**
+     * Creates a new builder.
+     *
+     * @param writer the writer the entry is added to.
+     * @param name the entry name.
+     */
+    public ArchiveEntryBuilder(IArchiveWriter writer, String name) {
+        Assert.notNull(writer, "writer must not be null");
+        Assert.hasLength(name, "name must not be empty");
+        this.writer = writer;
+        this.name = name;
+    }
+
+    /**
+     * @param mode the permission bits of the entry, {@link #DEFAULT_MODE} by default.
+     * @return this builder.
+     */
+    public ArchiveEntryBuilder mode(int mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * @param lastModified the modification time of the entry in milliseconds, the creation time of the builder by
+     * default.
+     * @return this builder.
+     */
+    public ArchiveEntryBuilder lastModified(long lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    /**
+     * Adds the entry holding the given bytes.
+     *
+     * @param data the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void write(byte[] data) throws IOException {
+        write(EntrySource.of(data));
+    }
+
+    /**
+     * Adds the entry holding the remaining bytes of the given buffer, whose position is left unchanged.
+     *
+     * @param data the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        write(EntrySource.of(data));
+    }
+
+    /**
+     * Adds the entry holding the next bytes of the given stream, which is not closed.
+     *
+     * @param in the stream holding the entry content.
+     * @param size the number of bytes of the content.
+     * @throws IOException if an io exception occures.
+     */
+    public void write(InputStream in, long size) throws IOException {
+        write(EntrySource.of(in, size));
+    }
+
+    /**
+     * Adds the entry holding the whole content of the given stream, whose length is not known beforehand. The stream
+     * is not closed.
+     *
+     * @param in the stream holding the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void write(InputStream in) throws IOException {
+        writer.add(name, mode, lastModified, in);
+    }
+
+    /**
+     * Adds the entry holding the given content.
+     *
+     * @param source the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void write(EntrySource source) throws IOException {
+        writer.add(name, mode, lastModified, source);
+    }
+}
@@ -0,0 +1,261 @@
+package util.tar;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Index of the entries of an archive, persisted in a sidecar file next to the archive.
+ *
+ * <p>The index records the length and the modification time of the archive it was built for; an index whose archive
+ * changed since is considered stale and is not loaded.
+ */
+public class ArchiveIndex {
+
+    /**
+     * Suffix appended to the archive file name to name the index file.
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x54494458;
+
+    private static final int VERSION = 2;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * First entry for each base name, for lookups without wildcards.
+     */
+    private final Map<String, Entry> entriesByBaseName = new HashMap<String, Entry>();
+
+    /**
+     * Last entry for each name, the one hard links added after it refer to.
+     */
+    private final Map<String, Entry> entriesByName = new HashMap<String, Entry>();
+
+    /**
+     * Adds an entry to the index.
+     *
+     * @param entry the entry.
+     */
+    public void add(Entry entry) {
+        entries.add(entry);
+        entriesByName.put(entry.getName(), entry);
+        String baseName = entry.getBaseName().trim();
+        if (!entriesByBaseName.containsKey(baseName)) {
+            entriesByBaseName.put(baseName, entry);
+        }
+    }
+
+    /**
+     * Adds a hard link entry, located at the content of the entry it links to so that reading the link reads its
+     * target. The link is not stored if its target is not in the index.
+     *
+     * @param name the entry name.
+     * @param headerOffset the offset of the first header of the link.
+     * @param target the name of the linked entry, added before the link.
+     * @param lastModified the modification time of the link.
+     * @return the added entry.
+     */
+    public Entry addLink(String name, long headerOffset, String target, long lastModified) {
+        Entry linked = entriesByName.get(target);
+        Entry entry = new Entry(name, headerOffset, linked != null ? linked.getDataOffset() : -1,
+                linked != null ? linked.getSize() : 0, lastModified, false);
+        add(entry);
+        return entry;
+    }
+
+    /**
+     * @return the entries in archive order.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the first entry whose base name matches the given pattern, or the first entry if no pattern is given.
+     *
+     * @param pattern the ant path pattern the base name must match, may be <code>null</code>.
+     * @param matcher the matcher used for patterns.
+     * @return the first matching entry, <code>null</code> if none matches.
+     */
+    public Entry find(String pattern, PathMatcher matcher) {
+        if (pattern == null || pattern.length() == 0) {
+            return entries.isEmpty() ? null : entries.get(0);
+        }
+        if (isLiteral(pattern)) {
+            return entriesByBaseName.get(pattern);
+        }
+        for (Entry entry : entries) {
+            if (matcher.match(pattern, entry.getBaseName())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Literal patterns match a base name only when equal to it, they can be looked up directly.
+     */
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '{' || c == '/') {
+                return false;
+            }
+        }
+        return pattern.trim().equals(pattern);
+    }
+
+    /**
+     * Returns the index file of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the sidecar index file.
+     */
+    public static File getIndexFile(File archive) {
+        return new File(archive.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Loads the index of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the index, <code>null</code> if there is no index or if it is stale.
+     * @throws IOException if an io exception occures.
+     */
+    public static ArchiveIndex load(File archive) throws IOException {
+        File indexFile = getIndexFile(archive);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readLong() != archive.length() || in.readLong() != archive.lastModified()) {
+                return null;
+            }
+
+            ArchiveIndex index = new ArchiveIndex();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.add(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readBoolean()));
+            }
+            return index;
+        } catch (EOFException e) {
+            // Truncated index, rebuild it
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves the index next to the given archive. Must be called once the archive is complete.
+     *
+     * @param archive the archive file.
+     * @throws IOException if an io exception occures.
+     */
+    public void save(File archive) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                getIndexFile(archive))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(archive.length());
+            out.writeLong(archive.lastModified());
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getHeaderOffset());
+                out.writeLong(entry.getDataOffset());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                out.writeBoolean(entry.isDirectory());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Location of an entry within the archive.
+     */
+    public static class Entry {
+
+        private final String name;
+
+        private final long headerOffset;
+
+        private final long dataOffset;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final boolean directory;
+
+        /**
+         * Creates a new index entry.
+         *
+         * @param name the entry name.
+         * @param headerOffset the offset of the first header of the entry.
+         * @param dataOffset the offset of the entry content, -1 if the content is not stored as is.
+         * @param size the size of the entry content.
+         * @param lastModified the modification time of the entry.
+         * @param directory whether the entry is a directory.
+         */
+        public Entry(String name, long headerOffset, long dataOffset, long size, long lastModified,
+                boolean directory) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.dataOffset = dataOffset;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the entry without its directories.
+         */
+        public String getBaseName() {
+            return new File(name).getName();
+        }
+
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return <code>true</code> if the content of the entry can be read directly at its data offset.
+         */
+        public boolean isStored() {
+            return dataOffset >= 0;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package util.tar;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Snapshot of the archived file tree, persisted in a sidecar file next to the archive. The manifest lists every file
+ * of the tree when the archive was written, whether the file is in the archive or not, so that the next incremental
+ * archive only holds the files that changed since. Files that disappeared since the base archive are recorded as
+ * deleted.
+ */
+public class ArchiveManifest {
+
+    /**
+     * Suffix appended to the archive file name to name the manifest file.
+     */
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final int MAGIC = 0x544D4E46;
+
+    private static final int VERSION = 1;
+
+    private final String baseName;
+
+    private final String digestAlgorithm;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private final List<String> deleted = new ArrayList<String>();
+
+    /**
+     * Creates a new manifest.
+     *
+     * @param baseName the file name of the archive this one is an increment of, <code>null</code> for a full archive.
+     * @param digestAlgorithm the algorithm of the entry digests, <code>null</code> if entries have no digest.
+     */
+    public ArchiveManifest(String baseName, String digestAlgorithm) {
+        this.baseName = baseName;
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * Adds an entry to the manifest.
+     *
+     * @param entry the entry.
+     */
+    public void add(Entry entry) {
+        entries.put(entry.getName(), entry);
+    }
+
+    /**
+     * @param name the entry name.
+     * @return the entry of the given name, <code>null</code> if not in the manifest.
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the entries in walk order.
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Records an entry of the base archive that no longer exists.
+     *
+     * @param name the entry name.
+     */
+    public void addDeleted(String name) {
+        deleted.add(name);
+    }
+
+    /**
+     * @return the names of the entries deleted since the base archive.
+     */
+    public List<String> getDeleted() {
+        return Collections.unmodifiableList(deleted);
+    }
+
+    /**
+     * @return the file name of the base archive, <code>null</code> for a full archive.
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * @return the algorithm of the entry digests, <code>null</code> if entries have no digest.
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * Returns the manifest file of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the sidecar manifest file.
+     */
+    public static File getManifestFile(File archive) {
+        return new File(archive.getPath() + MANIFEST_SUFFIX);
+    }
+
+    /**
+     * Loads the manifest of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the manifest, <code>null</code> if the archive has no manifest.
+     * @throws IOException if the manifest cannot be read.
+     */
+    public static ArchiveManifest load(File archive) throws IOException {
+        File manifestFile = getManifestFile(archive);
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid manifest " + manifestFile);
+            }
+            ArchiveManifest manifest = new ArchiveManifest(readOptional(in), readOptional(in));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] digest = null;
+                int digestLength = in.readUnsignedShort();
+                if (digestLength > 0) {
+                    digest = new byte[digestLength];
+                    in.readFully(digest);
+                }
+                manifest.add(new Entry(name, size, lastModified, digest));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                manifest.addDeleted(in.readUTF());
+            }
+            return manifest;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves the manifest next to the given archive.
+     *
+     * @param archive the archive file.
+     * @throws IOException if an io exception occures.
+     */
+    public void save(File archive) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                getManifestFile(archive))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(baseName != null ? baseName : "");
+            out.writeUTF(digestAlgorithm != null ? digestAlgorithm : "");
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                byte[] digest = entry.getDigest();
+                out.writeShort(digest != null ? digest.length : 0);
+                if (digest != null) {
+                    out.write(digest);
+                }
+            }
+            out.writeInt(deleted.size());
+            for (String name : deleted) {
+                out.writeUTF(name);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return value.length() > 0 ? value : null;
+    }
+
+    /**
+     * State of a file of the archived tree.
+     */
+    public static class Entry {
+
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final byte[] digest;
+
+        /**
+         * Creates a new manifest entry.
+         *
+         * @param name the entry name, ending with a slash for directories.
+         * @param size the size of the file.
+         * @param lastModified the modification time of the file.
+         * @param digest the digest of the file content, <code>null</code> if not computed.
+         */
+        public Entry(String name, long size, long lastModified, byte[] digest) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return <code>true</code> if the entry is a directory.
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
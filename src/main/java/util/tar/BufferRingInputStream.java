@@ -0,0 +1,197 @@
+package util.tar;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Input stream reading the wrapped stream ahead on a dedicated thread, so that an expensive stage such as a
+ * decompressor runs on its own core. The data travels in a bounded ring of buffers: the reader thread stops when
+ * every buffer is waiting for the calling thread.
+ */
+class BufferRingInputStream extends InputStream {
+
+    /**
+     * Default size of the buffers.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default number of buffers.
+     */
+    static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private final InputStream in;
+
+    private final BlockingQueue<Chunk> filled;
+
+    private final BlockingQueue<byte[]> free;
+
+    private final Thread reader;
+
+    private Chunk current;
+
+    private int position;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream with the default buffers and starts its reader thread.
+     *
+     * @param in the stream read by the reader thread, closed with this stream.
+     */
+    BufferRingInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new stream and starts its reader thread.
+     *
+     * @param in the stream read by the reader thread, closed with this stream.
+     * @param bufferSize the size of each buffer.
+     * @param bufferCount the number of buffers read ahead at most.
+     */
+    BufferRingInputStream(InputStream in, int bufferSize, int bufferCount) {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Assert.isTrue(bufferCount > 0, "bufferCount must be positive");
+        this.in = in;
+        this.filled = new ArrayBlockingQueue<Chunk>(bufferCount);
+        this.free = new ArrayBlockingQueue<byte[]>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        this.reader = new DaemonThreadFactory("archive-input").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                readChunks();
+            }
+        });
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, data, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? Math.max(current.length - position, 0) : 0;
+    }
+
+    /**
+     * Stops the reader thread and closes the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the current chunk hold unread data, recycling the consumed one.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            if (current.length < 0) {
+                checkFailure();
+                return false;
+            }
+            free.add(current.data);
+        }
+
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the input thread");
+        }
+        position = 0;
+        checkFailure();
+        return current.length > 0;
+    }
+
+    private void checkFailure() throws IOException {
+        if (current.failure != null) {
+            throw new IOException("Unable to read the archive", current.failure);
+        }
+    }
+
+    /**
+     * Reads the wrapped stream until its end, a failure or an interruption. The last chunk has a negative length.
+     */
+    private void readChunks() {
+        try {
+            while (true) {
+                byte[] buffer = free.take();
+                int count;
+                try {
+                    count = IOUtils.read(in, buffer);
+                } catch (IOException | RuntimeException e) {
+                    filled.put(new Chunk(null, -1, e));
+                    return;
+                }
+                if (count == 0) {
+                    filled.put(new Chunk(buffer, -1, null));
+                    return;
+                }
+                filled.put(new Chunk(buffer, count, null));
+            }
+        } catch (InterruptedException e) {
+            // Closed by the calling thread
+        }
+    }
+
+    private static final class Chunk {
+
+        private final byte[] data;
+
+        private final int length;
+
+        private final Exception failure;
+
+        Chunk(byte[] data, int length, Exception failure) {
+            this.data = data;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
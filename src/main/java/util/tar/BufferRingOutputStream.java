@@ -0,0 +1,196 @@
+package util.tar;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Output stream handing its data over to a dedicated thread writing the wrapped stream, so that an expensive stage
+ * such as a compressor runs on its own core. The data travels in a bounded ring of buffers: the calling thread only
+ * blocks when every buffer is waiting for the writer thread.
+ *
+ * <p>A failure of the writer thread is reported by the next buffer hand over, or by {@link #close()} at the latest.
+ */
+class BufferRingOutputStream extends OutputStream {
+
+    /**
+     * Default size of the buffers.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Default number of buffers.
+     */
+    static final int DEFAULT_BUFFER_COUNT = 8;
+
+    /**
+     * Marker ending the data sent to the writer thread.
+     */
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final OutputStream out;
+
+    private final BlockingQueue<Chunk> filled;
+
+    private final BlockingQueue<byte[]> free;
+
+    private final Thread writer;
+
+    private byte[] buffer;
+
+    private int count;
+
+    private volatile Exception failure;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream with the default buffers and starts its writer thread.
+     *
+     * @param out the stream written by the writer thread, closed with this stream.
+     */
+    BufferRingOutputStream(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * Creates a new stream and starts its writer thread.
+     *
+     * @param out the stream written by the writer thread, closed with this stream.
+     * @param bufferSize the size of each buffer.
+     * @param bufferCount the number of buffers waiting for the writer thread at most.
+     */
+    BufferRingOutputStream(OutputStream out, int bufferSize, int bufferCount) {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        Assert.isTrue(bufferCount > 0, "bufferCount must be positive");
+        this.out = out;
+        this.filled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        this.free = new ArrayBlockingQueue<byte[]>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        this.buffer = new byte[bufferSize];
+        this.writer = new DaemonThreadFactory("archive-output").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeChunks();
+            }
+        });
+        writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            handOver();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                handOver();
+            }
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(data, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Hands the buffered data over to the writer thread. The wrapped stream is not flushed, compressors would end
+     * their current block early.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            handOver();
+        }
+    }
+
+    /**
+     * Waits until the writer thread wrote every buffer and closed the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            filled.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output thread");
+        }
+        checkFailure();
+    }
+
+    private void handOver() throws IOException {
+        checkFailure();
+        try {
+            filled.put(new Chunk(buffer, count));
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output thread");
+        }
+        count = 0;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Unable to write the archive", failure);
+        }
+    }
+
+    /**
+     * Writes the buffers until the end marker. After a failure the buffers are still recycled, so that the calling
+     * thread never waits forever.
+     */
+    private void writeChunks() {
+        try {
+            Chunk chunk;
+            while ((chunk = filled.take()) != END) {
+                if (failure == null) {
+                    try {
+                        out.write(chunk.data, 0, chunk.length);
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                free.put(chunk.data);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private static final class Chunk {
+
+        private final byte[] data;
+
+        private final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
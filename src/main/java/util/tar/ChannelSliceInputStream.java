@@ -0,0 +1,157 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Input stream over a region of a file channel. Reads are positional, the channel is never buffered in the heap and
+ * can be shared with other readers; closing the stream closes the channel.
+ *
+ * <p>The stream is also a {@link ReadableByteChannel}, so callers can read the region into direct buffers, or move it
+ * with {@link #transferRemainingTo(WritableByteChannel)} without any copy through the heap.
+ */
+public class ChannelSliceInputStream extends InputStream implements ReadableByteChannel {
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private long position;
+
+    private long mark;
+
+    /**
+     * Creates a new stream over a region of the given channel.
+     *
+     * @param channel the channel, closed with the stream.
+     * @param offset the offset of the region.
+     * @param length the length of the region.
+     */
+    public ChannelSliceInputStream(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.position = offset;
+        this.mark = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        return read(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        long remaining = end - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int limit = target.limit();
+        if (target.remaining() > remaining) {
+            target.limit(target.position() + (int) remaining);
+        }
+        try {
+            int count = channel.read(target, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of channel at " + position + ", expected " + end);
+            }
+            position += count;
+            return count;
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * Transfers the remaining bytes of the region to the given channel with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     *
+     * @param target the target channel.
+     * @return the number of bytes transferred.
+     * @throws IOException if an io exception occures.
+     */
+    public long transferRemainingTo(WritableByteChannel target) throws IOException {
+        long count = end - position;
+        AbstractArchiveExtractor.transfer(channel, position, count, target);
+        position = end;
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(long count) {
+        long skipped = Math.max(0, Math.min(count, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() {
+        return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void mark(int readLimit) {
+        mark = position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        position = mark;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
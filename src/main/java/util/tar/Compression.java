@@ -0,0 +1,175 @@
+package util.tar;
+
+import java.io.*;
+
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compression applied to a whole archive file, as in <code>.tar.gz</code>. Decompression reads concatenated
+ * streams, so that archives written in several compressed members are read entirely.
+ */
+public enum Compression {
+
+    NONE {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+
+        @Override
+        boolean matches(byte[] signature, int length) {
+            return false;
+        }
+    },
+
+    GZIP {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GzipCompressorOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GzipCompressorInputStream(in, true);
+        }
+
+        @Override
+        boolean matches(byte[] signature, int length) {
+            return GzipCompressorInputStream.matches(signature, length);
+        }
+    },
+
+    BZIP2 {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new BZip2CompressorOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new BZip2CompressorInputStream(in, true);
+        }
+
+        @Override
+        boolean matches(byte[] signature, int length) {
+            // "BZh" alone is too common, the block size and the magic of the first block or of the end must follow
+            return BZip2CompressorInputStream.matches(signature, length) && length >= 4 + BZIP2_BLOCK_MAGIC.length
+                    && signature[3] >= '1' && signature[3] <= '9'
+                    && (startsWith(signature, 4, BZIP2_BLOCK_MAGIC) || startsWith(signature, 4, BZIP2_END_MAGIC));
+        }
+    },
+
+    XZ {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new XZCompressorOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new XZCompressorInputStream(in, true);
+        }
+
+        @Override
+        boolean matches(byte[] signature, int length) {
+            return XZCompressorInputStream.matches(signature, length);
+        }
+    };
+
+    /**
+     * Number of bytes read to recognize a compressed stream, a whole tar header.
+     */
+    private static final int SIGNATURE_LENGTH = TarConstants.DEFAULT_RCDSIZE;
+
+    private static final byte[] BZIP2_BLOCK_MAGIC = { 0x31, 0x41, 0x59, 0x26, 0x53, 0x59 };
+
+    private static final byte[] BZIP2_END_MAGIC = { 0x17, 0x72, 0x45, 0x38, 0x50, (byte) 0x90 };
+
+    /**
+     * Wraps the given stream with a compressing stream.
+     *
+     * @param out the stream receiving the compressed data.
+     * @return the compressing stream, finishing the compressed stream when closed.
+     * @throws IOException if an io exception occures.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps the given stream with a decompressing stream.
+     *
+     * @param in the stream of compressed data.
+     * @return the decompressing stream.
+     * @throws IOException if the stream is not compressed with this compression.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    abstract boolean matches(byte[] signature, int length);
+
+    /**
+     * Recognizes the compression of the given stream from its magic bytes. A stream starting with a valid tar header
+     * is not compressed, whatever the name of its first entry. The stream is reset to its position.
+     *
+     * @param in the stream, supporting {@link InputStream#mark(int)}.
+     * @return the compression of the stream, {@link #NONE} if none is recognized.
+     * @throws IOException if an io exception occures.
+     */
+    public static Compression detect(InputStream in) throws IOException {
+        Assert.isTrue(in.markSupported(), "stream must support mark");
+        byte[] signature = new byte[SIGNATURE_LENGTH];
+        in.mark(SIGNATURE_LENGTH);
+        int length;
+        try {
+            length = IOUtils.read(in, signature);
+        } finally {
+            in.reset();
+        }
+
+        if (length == SIGNATURE_LENGTH && TarUtils.verifyCheckSum(signature)) {
+            return NONE;
+        }
+        for (Compression compression : values()) {
+            if (compression.matches(signature, length)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    private static boolean startsWith(byte[] signature, int offset, byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (signature[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recognizes the compression of the given file from its magic bytes.
+     *
+     * @param file the file.
+     * @return the compression of the file, {@link #NONE} if none is recognized.
+     * @throws IOException if an io exception occures.
+     */
+    public static Compression detect(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), SIGNATURE_LENGTH);
+        try {
+            return detect(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package util.tar;
+
+import java.io.*;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe sink adding generated entries to one archive from several producer threads.
+ *
+ * <p>Each producer stages the content of its entry in a {@link SpillBuffer} of its own, so that producers run
+ * concurrently and never wait for each other while generating or copying their data. The staged entry is then queued
+ * for a single serializer thread, which writes whole entries to the {@link IArchiveWriter} in the order they were
+ * queued and recycles the buffers. Every producer owns a few buffers: it only waits when all of them are still queued,
+ * which bounds the memory held by the sink.
+ *
+ * <p>An error of the serializer is thrown by the following calls of the producers and by {@link #close()}. Producers
+ * waiting for a buffer when the serializer stops are woken up by the error.
+ */
+public class ConcurrentArchiveSink implements Closeable {
+
+    /**
+     * Number of buffers of each producer thread: one being staged while another one is written.
+     */
+    private static final int BUFFERS_PER_THREAD = 2;
+
+    /**
+     * Milliseconds a producer waits for a free buffer before checking that the serializer still runs.
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Marks the end of the queued entries.
+     */
+    private static final StagedEntry END = new StagedEntry(null, 0, 0, null, null);
+
+    private final IArchiveWriter writer;
+
+    private final int spillThreshold;
+
+    private final File spillDirectory;
+
+    private final BlockingQueue<StagedEntry> queue = new LinkedBlockingQueue<StagedEntry>();
+
+    /**
+     * Free buffers of each producer thread. The sink owns them rather than the threads, so that pooled producer
+     * threads do not keep them once the sink is closed.
+     */
+    private final ConcurrentMap<Thread, BlockingQueue<SpillBuffer>> producerBuffers =
+            new ConcurrentHashMap<Thread, BlockingQueue<SpillBuffer>>();
+
+    /**
+     * Buffers of all producer threads, whose spill files are deleted when the sink is closed.
+     */
+    private final Queue<SpillBuffer> allBuffers = new ConcurrentLinkedQueue<SpillBuffer>();
+
+    private final Thread serializer;
+
+    private volatile Throwable failure;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new sink staging the entries with the default spill threshold.
+     *
+     * @param writer the writer of the archive, closed with the sink.
+     */
+    public ConcurrentArchiveSink(IArchiveWriter writer) {
+        this(writer, SpillBuffer.DEFAULT_THRESHOLD, null);
+    }
+
+    /**
+     * Creates a new sink and starts its serializer thread.
+     *
+     * @param writer the writer of the archive, closed with the sink.
+     * @param spillThreshold the number of bytes of an entry staged in memory before spilling it to a temporary file.
+     * @param spillDirectory the directory of the temporary files, <code>null</code> for the default temporary
+     * directory.
+     */
+    public ConcurrentArchiveSink(IArchiveWriter writer, int spillThreshold, File spillDirectory) {
+        Assert.notNull(writer, "writer must not be null");
+        Assert.isTrue(spillThreshold >= 0, "spillThreshold must not be negative");
+        this.writer = writer;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+        this.serializer = new DaemonThreadFactory("archive-sink").newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    writeEntries();
+                } catch (Error e) {
+                    failure = e;
+                    throw e;
+                }
+            }
+        });
+        serializer.start();
+    }
+
+    /**
+     * Adds a regular file entry holding the given bytes. The bytes are copied, the array can be reused as soon as the
+     * method returns.
+     *
+     * @param name the entry name.
+     * @param mode the permission bits of the entry.
+     * @param lastModified the modification time of the entry, in milliseconds.
+     * @param data the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void addEntry(String name, int mode, long lastModified, byte[] data) throws IOException {
+        Assert.notNull(data, "data must not be null");
+        SpillBuffer buffer = takeBuffer();
+        try {
+            buffer.write(data, 0, data.length);
+        } catch (IOException | RuntimeException e) {
+            recycle(buffer);
+            throw e;
+        }
+        commit(name, mode, lastModified, buffer);
+    }
+
+    /**
+     * Adds a regular file entry holding the whole content of the given stream, which is read on the calling thread
+     * until its end but not closed.
+     *
+     * @param name the entry name.
+     * @param mode the permission bits of the entry.
+     * @param lastModified the modification time of the entry, in milliseconds.
+     * @param in the stream holding the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    public void addEntry(String name, int mode, long lastModified, InputStream in) throws IOException {
+        Assert.notNull(in, "in must not be null");
+        SpillBuffer buffer = takeBuffer();
+        try {
+            buffer.readFrom(in);
+        } catch (IOException | RuntimeException e) {
+            recycle(buffer);
+            throw e;
+        }
+        commit(name, mode, lastModified, buffer);
+    }
+
+    /**
+     * Waits for the queued entries to be written and closes the archive writer. The producers must have returned
+     * from their last call.
+     *
+     * @throws IOException if an entry could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(END);
+        try {
+            serializer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the archive sink");
+        }
+
+        try {
+            writer.close();
+        } finally {
+            producerBuffers.clear();
+            for (SpillBuffer buffer : allBuffers) {
+                buffer.close();
+            }
+            allBuffers.clear();
+        }
+        checkFailure();
+    }
+
+    private SpillBuffer takeBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Archive sink closed");
+        }
+        checkFailure();
+        BlockingQueue<SpillBuffer> buffers = getProducerBuffers();
+        try {
+            // The buffers of an entry dropped by a stopped serializer never come back
+            SpillBuffer buffer = buffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            while (buffer == null) {
+                checkFailure();
+                if (!serializer.isAlive()) {
+                    throw new IOException("Archive sink stopped");
+                }
+                buffer = buffers.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    /**
+     * Returns the free buffers of the calling producer thread, creating them on its first call.
+     */
+    private BlockingQueue<SpillBuffer> getProducerBuffers() {
+        Thread producer = Thread.currentThread();
+        BlockingQueue<SpillBuffer> buffers = producerBuffers.get(producer);
+        if (buffers == null) {
+            buffers = new ArrayBlockingQueue<SpillBuffer>(BUFFERS_PER_THREAD);
+            for (int i = 0; i < BUFFERS_PER_THREAD; i++) {
+                SpillBuffer buffer = new SpillBuffer(spillThreshold, spillDirectory);
+                buffers.add(buffer);
+                allBuffers.add(buffer);
+            }
+            producerBuffers.put(producer, buffers);
+        }
+        return buffers;
+    }
+
+    private void commit(String name, int mode, long lastModified, SpillBuffer buffer) {
+        queue.add(new StagedEntry(name, mode, lastModified, buffer, getProducerBuffers()));
+    }
+
+    /**
+     * Gives a buffer that was not committed back to the calling producer.
+     */
+    private void recycle(SpillBuffer buffer) throws IOException {
+        try {
+            buffer.reset();
+        } finally {
+            getProducerBuffers().add(buffer);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw new IOException("Unable to write the archive", cause);
+        }
+    }
+
+    /**
+     * Writes the queued entries until the end marker. After a failure, the entries are dropped and their buffers
+     * still recycled, so that no producer waits forever.
+     */
+    private void writeEntries() {
+        while (true) {
+            StagedEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                failure = e;
+                return;
+            }
+            if (entry == END) {
+                return;
+            }
+
+            try {
+                if (failure == null) {
+                    writer.add(entry.name, entry.mode, entry.lastModified, entry.buffer.toSource());
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                try {
+                    entry.buffer.reset();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                entry.owner.add(entry.buffer);
+            }
+        }
+    }
+
+    /**
+     * Entry staged by a producer, waiting for the serializer.
+     */
+    private static final class StagedEntry {
+
+        private final String name;
+
+        private final int mode;
+
+        private final long lastModified;
+
+        private final SpillBuffer buffer;
+
+        /**
+         * Free buffers of the producer, where the buffer goes back once written.
+         */
+        private final BlockingQueue<SpillBuffer> owner;
+
+        StagedEntry(String name, int mode, long lastModified, SpillBuffer buffer, BlockingQueue<SpillBuffer> owner) {
+            this.name = name;
+            this.mode = mode;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds archived files whose content was already archived under another name.
+ *
+ * <p>Only files whose size collides with a previous file are digested: the first file of each size is remembered and
+ * digested when a second file of the same size shows up.
+ */
+class ContentDeduplicator {
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * First file of each size, digested once a second file of that size is found.
+     */
+    private final Map<Long, Candidate> firstBySize = new HashMap<Long, Candidate>();
+
+    /**
+     * Name of the first file holding each content.
+     */
+    private final Map<ByteBuffer, String> namesByDigest = new HashMap<ByteBuffer, String>();
+
+    /**
+     * Returns the name of a previous file with the same content as the given one, or remembers the given file.
+     *
+     * @param name the entry name of the file.
+     * @param file the file.
+     * @param size the size of the file.
+     * @return the entry name of the first file with the same content, <code>null</code> if the content is new.
+     * @throws IOException if an io exception occures.
+     */
+    String findDuplicate(String name, File file, long size) throws IOException {
+        if (size == 0) {
+            return null;
+        }
+
+        Candidate first = firstBySize.get(size);
+        if (first == null) {
+            firstBySize.put(size, new Candidate(name, file));
+            return null;
+        }
+        if (!first.digested) {
+            namesByDigest.put(ByteBuffer.wrap(digest(first.file, DIGEST_ALGORITHM)), first.name);
+            first.digested = true;
+        }
+
+        ByteBuffer digest = ByteBuffer.wrap(digest(file, DIGEST_ALGORITHM));
+        String target = namesByDigest.get(digest);
+        if (target == null) {
+            namesByDigest.put(digest, name);
+        }
+        return target;
+    }
+
+    /**
+     * Computes the digest of the content of the given file.
+     *
+     * @param file the file.
+     * @param algorithm the {@link MessageDigest} algorithm.
+     * @return the digest.
+     * @throws IOException if an io exception occures.
+     */
+    static byte[] digest(File file, String algorithm) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] data = new byte[BUFFER_SIZE];
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = fileInputStream.read(data)) != -1) {
+                messageDigest.update(data, 0, count);
+            }
+        } finally {
+            fileInputStream.close();
+        }
+        return messageDigest.digest();
+    }
+
+    private static class Candidate {
+
+        private final String name;
+
+        private final File file;
+
+        private boolean digested;
+
+        Candidate(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package util.tar;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that an abandoned archive task never keeps the vm alive.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final String prefix;
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * Creates a new factory.
+     *
+     * @param name the name of the pool, used as thread name prefix.
+     */
+    DaemonThreadFactory(String name) {
+        this.prefix = name + "-" + POOL_NUMBER.incrementAndGet() + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
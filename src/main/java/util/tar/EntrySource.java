@@ -0,0 +1,118 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Content of an archive entry that does not come from a file, written straight into the archive output stream.
+ *
+ * @see IArchiveWriter#add(String, int, long, EntrySource)
+ */
+public abstract class EntrySource {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * @return the number of bytes of the content.
+     */
+    public abstract long getSize();
+
+    /**
+     * Writes the whole content into the given stream.
+     *
+     * @param out the stream receiving the content.
+     * @throws IOException if an io exception occures.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Returns the source of the given bytes. The array is not copied and must not change until the entry is written.
+     *
+     * @param data the content.
+     * @return the source.
+     */
+    public static EntrySource of(final byte[] data) {
+        Assert.notNull(data, "data must not be null");
+        return new EntrySource() {
+
+            @Override
+            public long getSize() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data, 0, data.length);
+            }
+        };
+    }
+
+    /**
+     * Returns the source of the remaining bytes of the given buffer. The position of the buffer is left unchanged;
+     * its content must not change until the entry is written.
+     *
+     * @param data the content.
+     * @return the source.
+     */
+    public static EntrySource of(ByteBuffer data) {
+        Assert.notNull(data, "data must not be null");
+        final ByteBuffer content = data.duplicate();
+        return new EntrySource() {
+
+            @Override
+            public long getSize() {
+                return content.remaining();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                if (content.hasArray()) {
+                    out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+                    return;
+                }
+                // Direct and mapped buffers are copied through a small heap buffer
+                ByteBuffer remaining = content.duplicate();
+                byte[] buffer = new byte[Math.min(BUFFER_SIZE, remaining.remaining())];
+                while (remaining.hasRemaining()) {
+                    int count = Math.min(buffer.length, remaining.remaining());
+                    remaining.get(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the source of the next bytes of the given stream. The stream is read when the entry is written, but it
+     * is not closed.
+     *
+     * @param in the stream holding the content.
+     * @param size the number of bytes of the content, the stream must hold at least as many.
+     * @return the source.
+     */
+    public static EntrySource of(final InputStream in, final long size) {
+        Assert.notNull(in, "in must not be null");
+        Assert.isTrue(size >= 0, "size must not be negative");
+        return new EntrySource() {
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(size, 1))];
+                long remaining = size;
+                while (remaining > 0) {
+                    int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count < 0) {
+                        throw new EOFException("Entry content ended " + remaining + " bytes before its size");
+                    }
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+        };
+    }
+}
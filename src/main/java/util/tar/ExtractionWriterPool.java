@@ -0,0 +1,283 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Pool of threads creating the extracted directories and files and writing them while the archive is decoded on the
+ * calling thread.
+ *
+ * <p>Content read from an archive stream is handed over in heap buffers bounded by a memory budget; entries that do
+ * not fit are written by the calling thread. Content of seekable archives is handed over as a channel region and
+ * transferred by the writer threads. The calling thread blocks once a few tasks per thread are pending.
+ */
+class ExtractionWriterPool implements Closeable {
+
+    /**
+     * Number of tasks pending for each writer thread before the calling thread waits.
+     */
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final ExecutorService executor;
+
+    private final Semaphore memory;
+
+    private final int memoryBudget;
+
+    /**
+     * Permits of the pending tasks.
+     */
+    private final Semaphore pending;
+
+    /**
+     * Pending task of each target, so that an entry repeated in the archive still wins over the former ones. Tasks
+     * remove themselves once done.
+     */
+    private final Map<File, Future<?>> tasks = new ConcurrentHashMap<File, Future<?>>();
+
+    /**
+     * First failure of a task, reported to the calling thread.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param threads the number of writer threads.
+     * @param memoryBudget the maximum number of bytes buffered for the writer threads.
+     */
+    ExtractionWriterPool(int threads, long memoryBudget) {
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("archive-writer"));
+        this.memoryBudget = (int) Math.min(memoryBudget, Integer.MAX_VALUE);
+        this.memory = new Semaphore(this.memoryBudget);
+        this.pending = new Semaphore(threads * PENDING_PER_THREAD);
+    }
+
+    /**
+     * Creates a directory and its parents on a writer thread.
+     *
+     * @param directory the directory.
+     * @throws IOException if a previous write failed.
+     */
+    void mkdirs(final File directory) throws IOException {
+        submit(directory, new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                Files.createDirectories(directory.toPath());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes a region of the archive channel to the target file on a writer thread.
+     *
+     * @param source the archive channel.
+     * @param position the offset of the entry content.
+     * @param count the size of the entry content.
+     * @param target the target file.
+     * @throws IOException if a previous write failed.
+     */
+    void transfer(final FileChannel source, final long position, final long count, final File target)
+            throws IOException {
+        submit(target, new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                FileOutputStream fileOutputStream = openTarget(target);
+                try {
+                    AbstractArchiveExtractor.transfer(source, position, count, fileOutputStream.getChannel());
+                } finally {
+                    fileOutputStream.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Writes the content of the current entry of the given stream to the target file. The content is buffered and
+     * written on a writer thread if it fits the memory budget, otherwise it is written on the calling thread.
+     *
+     * @param inputStream the archive stream positioned on the entry content.
+     * @param size the size of the entry content, negative if unknown.
+     * @param target the target file.
+     * @throws IOException if an io exception occures.
+     */
+    void write(InputStream inputStream, long size, final File target) throws IOException {
+        if (size < 0 || size > memoryBudget) {
+            awaitPrevious(target);
+            FileOutputStream fileOutputStream = openTarget(target);
+            try {
+                IOUtils.copy(inputStream, fileOutputStream);
+            } finally {
+                fileOutputStream.close();
+            }
+            return;
+        }
+
+        final int permits = (int) size;
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer threads");
+        }
+        final byte[] content;
+        try {
+            content = IOUtils.toByteArray(inputStream, size);
+        } catch (IOException e) {
+            memory.release(permits);
+            throw e;
+        }
+
+        submit(target, new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                try {
+                    FileOutputStream fileOutputStream = openTarget(target);
+                    try {
+                        fileOutputStream.write(content);
+                    } finally {
+                        fileOutputStream.close();
+                    }
+                } finally {
+                    memory.release(permits);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits until every submitted file is written.
+     *
+     * @throws IOException if a write failed.
+     */
+    void await() throws IOException {
+        // Only the calling thread submits, the tasks pending now are the last ones
+        for (Future<?> task : new ArrayList<Future<?>>(tasks.values())) {
+            get(task);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until the given file is written, if it was submitted.
+     *
+     * @param target the target file.
+     * @throws IOException if the write failed.
+     */
+    void await(File target) throws IOException {
+        awaitPrevious(target);
+        checkFailure();
+    }
+
+    /**
+     * Stops the writer threads, abandoning the files not written yet.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void submit(File target, Callable<Void> callable) throws IOException {
+        awaitPrevious(target);
+        checkFailure();
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer threads");
+        }
+        WriteTask task = new WriteTask(target, callable);
+        // Registered before it runs, so that it can only remove itself afterwards
+        tasks.put(target, task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            tasks.remove(target, task);
+            pending.release();
+            throw new IOException("Writer threads are stopped", e);
+        }
+    }
+
+    private void awaitPrevious(File target) throws IOException {
+        Future<?> previous = tasks.get(target);
+        if (previous != null) {
+            get(previous);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw toIOException(cause);
+        }
+    }
+
+    /**
+     * Opens the target file for writing, making its parent directories.
+     */
+    private static FileOutputStream openTarget(File target) throws IOException {
+        Files.createDirectories(target.getParentFile().toPath());
+        return new FileOutputStream(target);
+    }
+
+    private static void get(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer threads");
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        }
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Task forgetting itself and releasing its permit once done, recording its failure.
+     */
+    private final class WriteTask extends FutureTask<Void> {
+
+        private final File target;
+
+        WriteTask(File target, Callable<Void> callable) {
+            super(callable);
+            this.target = target;
+        }
+
+        @Override
+        protected void done() {
+            try {
+                if (!isCancelled()) {
+                    get();
+                }
+            } catch (ExecutionException e) {
+                // Recorded before the task is forgotten, so that the calling thread sees one or the other
+                failure.compareAndSet(null, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                tasks.remove(target, this);
+                pending.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks a file tree in depth first order, directories before their content, reading the attributes of each file
+ * once. Names relative to the walked root are computed by slicing the path strings, the tree is never canonicalized.
+ *
+ * <p>With a single thread the tree is walked with {@link Files#walkFileTree(Path, java.util.Set, int, FileVisitor)},
+ * which streams the content of directories. With more threads the subdirectories of each visited directory are listed
+ * ahead by a fork-join pool while the calling thread visits the files in order; a directory listing is then held in
+ * memory until it is visited.
+ *
+ * <p>Symbolic links are either followed or visited as links. A directory reached again below itself, through a link
+ * or a bind mount, fails the walk with a {@link FileSystemLoopException}; directories are recognized by their file
+ * key, the device and inode on unix.
+ */
+class FileTreeWalker implements Closeable {
+
+    /**
+     * Receives the files of the walked tree.
+     */
+    interface Visitor {
+
+        /**
+         * Visits a file or a directory of the tree.
+         *
+         * @param name the name relative to the root, ending with a slash for directories.
+         * @param file the file.
+         * @param attributes the attributes of the file.
+         * @throws IOException if an io exception occures.
+         */
+        void visit(String name, Path file, BasicFileAttributes attributes) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+
+    private final boolean followLinks;
+
+    /**
+     * Creates a new walker.
+     *
+     * @param threads the number of threads listing directories, 1 walks the tree on the calling thread.
+     * @param followLinks <code>true</code> to follow symbolic links, <code>false</code> to visit them as links.
+     */
+    FileTreeWalker(int threads, boolean followLinks) {
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        this.followLinks = followLinks;
+    }
+
+    /**
+     * Walks the tree under the given root directory, the root itself is not visited.
+     *
+     * @param directory the root directory.
+     * @param visitor the visitor.
+     * @throws IOException if an io exception occures.
+     */
+    void walk(Path directory, final Visitor visitor) throws IOException {
+        // The root is walked even if it is a link
+        final Path root = !followLinks && Files.isSymbolicLink(directory) ? directory.toRealPath() : directory;
+        final int prefixLength = getPrefixLength(root);
+        final Set<Object> ancestors = new HashSet<Object>();
+        if (pool == null) {
+            // Attributes of the directories being walked, to leave them without reading them again
+            final Deque<BasicFileAttributes> walked = new ArrayDeque<BasicFileAttributes>();
+            Set<FileVisitOption> options = followLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+                    : EnumSet.noneOf(FileVisitOption.class);
+            Files.walkFileTree(root, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                        throws IOException {
+                    enter(dir, attributes, ancestors);
+                    walked.push(attributes);
+                    if (!dir.equals(root)) {
+                        visitor.visit(getRelativeName(dir, prefixLength, true), dir, attributes);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    visitor.visit(getRelativeName(file, prefixLength, false), file, attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    leave(walked.pop(), ancestors);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return;
+        }
+
+        BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+        enter(root, rootAttributes, ancestors);
+        walkListing(pool.submit(new Listing(root, followLinks)), prefixLength, visitor, ancestors);
+    }
+
+    /**
+     * Stops the listing threads.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    private void walkListing(ForkJoinTask<List<Child>> listing, int prefixLength, Visitor visitor,
+            Set<Object> ancestors) throws IOException {
+        List<Child> children = join(listing);
+
+        // List the subdirectories while the files of this directory are visited
+        List<ForkJoinTask<List<Child>>> subListings = new ArrayList<ForkJoinTask<List<Child>>>();
+        for (Child child : children) {
+            if (child.attributes.isDirectory()) {
+                subListings.add(pool.submit(new Listing(child.path, followLinks)));
+            }
+        }
+
+        int subListing = 0;
+        for (Child child : children) {
+            boolean directory = child.attributes.isDirectory();
+            visitor.visit(getRelativeName(child.path, prefixLength, directory), child.path, child.attributes);
+            if (!directory) {
+                continue;
+            }
+
+            enter(child.path, child.attributes, ancestors);
+            walkListing(subListings.get(subListing++), prefixLength, visitor, ancestors);
+            leave(child.attributes, ancestors);
+        }
+    }
+
+    /**
+     * Records a directory being walked, failing if it is one of its own ancestors.
+     */
+    private static void enter(Path directory, BasicFileAttributes attributes, Set<Object> ancestors)
+            throws FileSystemLoopException {
+        Object key = attributes.fileKey();
+        if (key != null && !ancestors.add(key)) {
+            throw new FileSystemLoopException(directory.toString());
+        }
+    }
+
+    private static void leave(BasicFileAttributes attributes, Set<Object> ancestors) {
+        Object key = attributes.fileKey();
+        if (key != null) {
+            ancestors.remove(key);
+        }
+    }
+
+    private static int getPrefixLength(Path root) {
+        String rootName = root.toString();
+        return rootName.endsWith(root.getFileSystem().getSeparator()) ? rootName.length() : rootName.length() + 1;
+    }
+
+    private static String getRelativeName(Path file, int prefixLength, boolean directory) {
+        String name = file.toString().substring(prefixLength);
+        if (File.separatorChar != '/') {
+            name = name.replace(File.separatorChar, '/');
+        }
+        return directory ? name + '/' : name;
+    }
+
+    private static List<Child> join(ForkJoinTask<List<Child>> listing) throws IOException {
+        try {
+            return listing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing directories");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A listed file with its attributes.
+     */
+    private static final class Child {
+
+        private final Path path;
+
+        private final BasicFileAttributes attributes;
+
+        private Child(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Lists a directory and reads the attributes of its content.
+     */
+    private static final class Listing extends RecursiveTask<List<Child>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private final boolean followLinks;
+
+        private Listing(Path directory, boolean followLinks) {
+            this.directory = directory;
+            this.followLinks = followLinks;
+        }
+
+        @Override
+        protected List<Child> compute() {
+            List<Child> children = new ArrayList<Child>();
+            try {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+                try {
+                    for (Path path : stream) {
+                        children.add(new Child(path, readAttributes(path, followLinks)));
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return children;
+        }
+
+        /**
+         * Reads the attributes of the link target, or of the link itself when it is broken or not followed, like the
+         * sequential walk.
+         */
+        private static BasicFileAttributes readAttributes(Path path, boolean followLinks) throws IOException {
+            if (!followLinks) {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Index of the independent members of a gzip file, mapping uncompressed offsets to the compressed offset of the
+ * member holding them, so that data can be read from the middle of the file by inflating only the members covering
+ * it. The index is persisted in a sidecar file in the <code>.gzi</code> format of bgzip: the number of members
+ * following the first one, then the compressed and uncompressed offset of each of them, as little endian 64 bits
+ * integers.
+ *
+ * <p>The sidecar file has no stamp of the gzip file it belongs to: it is saved along with an {@link ArchiveIndex},
+ * whose freshness stands for both.
+ */
+public class GzipBlockIndex {
+
+    /**
+     * Suffix appended to the archive file name to name the block index file.
+     */
+    public static final String INDEX_SUFFIX = ".gzi";
+
+    /**
+     * Compressed and uncompressed offset of each member, the first member starting at offset 0 in both.
+     */
+    private final List<long[]> blocks = new ArrayList<long[]>();
+
+    /**
+     * Creates an index holding the first member.
+     */
+    public GzipBlockIndex() {
+        blocks.add(new long[] { 0, 0 });
+    }
+
+    /**
+     * Adds a member, after the previous ones.
+     *
+     * @param compressedOffset the offset of the member in the gzip file.
+     * @param uncompressedOffset the offset of the first byte of the member in the uncompressed data.
+     */
+    public void add(long compressedOffset, long uncompressedOffset) {
+        blocks.add(new long[] { compressedOffset, uncompressedOffset });
+    }
+
+    /**
+     * @return the number of members, the first one included.
+     */
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    public long getCompressedOffset(int block) {
+        return blocks.get(block)[0];
+    }
+
+    public long getUncompressedOffset(int block) {
+        return blocks.get(block)[1];
+    }
+
+    /**
+     * Returns the member holding the given uncompressed offset.
+     *
+     * @param uncompressedOffset the offset in the uncompressed data.
+     * @return the index of the last member starting at or before the offset.
+     */
+    public int findBlock(long uncompressedOffset) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle)[1] <= uncompressedOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Opens a stream over a region of the uncompressed data, inflating the gzip file from the member holding the
+     * start of the region.
+     *
+     * @param channel the channel of the gzip file, closed with the returned stream.
+     * @param offset the uncompressed offset of the region.
+     * @param length the length of the region.
+     * @return the stream over the region.
+     * @throws IOException if an io exception occures.
+     */
+    public InputStream openStream(FileChannel channel, long offset, long length) throws IOException {
+        int block = findBlock(offset);
+        long compressedOffset = getCompressedOffset(block);
+        InputStream inputStream = new ChannelSliceInputStream(channel, compressedOffset,
+                channel.size() - compressedOffset);
+        try {
+            inputStream = Compression.GZIP.decompress(new BufferedInputStream(inputStream));
+            IOUtils.skipFully(inputStream, offset - getUncompressedOffset(block));
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return new BoundedInputStream(inputStream, length);
+    }
+
+    /**
+     * Returns the block index file of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the sidecar block index file.
+     */
+    public static File getIndexFile(File archive) {
+        return new File(archive.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Loads the block index of the given archive.
+     *
+     * @param archive the archive file.
+     * @return the index, <code>null</code> if there is no index.
+     * @throws IOException if an io exception occures.
+     */
+    public static GzipBlockIndex load(File archive) throws IOException {
+        File indexFile = getIndexFile(archive);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            GzipBlockIndex index = new GzipBlockIndex();
+            long count = Long.reverseBytes(in.readLong());
+            for (long i = 0; i < count; i++) {
+                index.add(Long.reverseBytes(in.readLong()), Long.reverseBytes(in.readLong()));
+            }
+            return index;
+        } catch (EOFException e) {
+            // Truncated index
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves the block index next to the given archive.
+     *
+     * @param archive the archive file.
+     * @throws IOException if an io exception occures.
+     */
+    public void save(File archive) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                getIndexFile(archive))));
+        try {
+            out.writeLong(Long.reverseBytes(blocks.size() - 1));
+            for (int i = 1; i < blocks.size(); i++) {
+                out.writeLong(Long.reverseBytes(getCompressedOffset(i)));
+                out.writeLong(Long.reverseBytes(getUncompressedOffset(i)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
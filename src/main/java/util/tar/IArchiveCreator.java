@@ -1,6 +1,7 @@
 package util.tar;
 
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Helper interface to create archive.
@@ -29,4 +30,66 @@ public interface IArchiveCreator {
      * @throws IOException if an io exception occures.
      */
     File inflate(File file) throws IOException;
+
+    /**
+     * Appends the specified files to the archive, creating it if it does not exist. The existing entries are kept in
+     * place, only the new entries are written. Directories are appended with all the files they contain, like
+     * {@link #inflate(File...)} does. The manifest of the archive, if any, is updated with the appended files. If the
+     * append fails, the archive is left as it was. Compressed archives cannot be appended to.
+     *
+     * @param files the files or directories to append.
+     * @return the archive file.
+     * @throws IOException if an io exception occures, or if the archive is compressed.
+     */
+    File append(File... files) throws IOException;
+
+    /**
+     * Writes an archive of the specified files into the given stream instead of the archive file. The archive is
+     * written while the files are walked; no sidecar file is written. Directories are written with all the files they
+     * contain, like {@link #inflate(File...)} does. The stream is flushed but not closed.
+     *
+     * @param target the stream receiving the archive.
+     * @param files the files or directories to archive.
+     * @throws IOException if an io exception occures.
+     */
+    void write(OutputStream target, File... files) throws IOException;
+
+    /**
+     * Writes an archive of the specified files into the given channel instead of the archive file, see
+     * {@link #write(OutputStream, File...)}. The channel is not closed.
+     *
+     * @param target the channel receiving the archive.
+     * @param files the files or directories to archive.
+     * @throws IOException if an io exception occures.
+     */
+    void write(WritableByteChannel target, File... files) throws IOException;
+
+    /**
+     * Opens a writer adding entries to a new archive file, from files or from generated content in any order. The
+     * index and the manifest are saved when the writer is closed, as configured.
+     *
+     * @return the archive writer.
+     * @throws IOException if an io exception occures.
+     */
+    IArchiveWriter openWriter() throws IOException;
+
+    /**
+     * Opens a writer adding entries to an archive written into the given stream, see {@link #openWriter()}. No
+     * sidecar file is written; the stream is flushed but not closed when the writer is closed.
+     *
+     * @param target the stream receiving the archive.
+     * @return the archive writer.
+     * @throws IOException if an io exception occures.
+     */
+    IArchiveWriter openWriter(OutputStream target) throws IOException;
+
+    /**
+     * Opens a writer adding entries to an archive written into the given channel, see {@link #openWriter()}. No
+     * sidecar file is written; the channel is not closed when the writer is closed.
+     *
+     * @param target the channel receiving the archive.
+     * @return the archive writer.
+     * @throws IOException if an io exception occures.
+     */
+    IArchiveWriter openWriter(WritableByteChannel target) throws IOException;
 }
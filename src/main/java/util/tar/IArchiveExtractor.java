@@ -34,4 +34,21 @@ public interface IArchiveExtractor {
      */
     void deflate(File destination, String outputFilePattern, boolean flat) throws IOException;
 
+    /**
+     * Extract the archive file to the given destination as a step of an incremental restore: the entries overwrite
+     * the files of the destination and the files recorded as deleted in the archive manifest are removed.
+     *
+     * @param destination the destination holding the restored base archives.
+     * @throws IOException if an io exception occures.
+     */
+    void restore(File destination) throws IOException;
+
+    /**
+     * Sets the number of threads creating and writing the extracted files while the archive is decoded. Defaults to
+     * 1, which extracts every entry on the calling thread.
+     *
+     * @param writeThreads the number of writer threads.
+     */
+    void setWriteThreads(int writeThreads);
+
 }
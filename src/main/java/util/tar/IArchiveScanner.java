@@ -0,0 +1,41 @@
+package util.tar;
+
+import java.io.*;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+/**
+ * Helper interface to walk the entries of a seekable archive. Only the headers are read, the content of the entries
+ * is skipped by position arithmetic.
+ */
+public interface IArchiveScanner {
+
+    /**
+     * Reads the header of the next entry.
+     *
+     * @return the next entry, <code>null</code> at the end of the archive.
+     * @throws IOException if an io exception occures.
+     */
+    ArchiveEntry getNextEntry() throws IOException;
+
+    /**
+     * @return the offset of the first header of the current entry.
+     */
+    long getHeaderOffset();
+
+    /**
+     * @return the offset of the content of the current entry.
+     */
+    long getDataOffset();
+
+    /**
+     * @return the number of content bytes stored at the data offset of the current entry.
+     */
+    long getDataSize();
+
+    /**
+     * @return the data segments of the current entry if it is a sparse file, <code>null</code> otherwise. The content
+     *         of a sparse entry is its data segments put end to end.
+     */
+    SparseFileMap getSparseMap();
+}
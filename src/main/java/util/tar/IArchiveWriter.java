@@ -0,0 +1,61 @@
+package util.tar;
+
+import java.io.*;
+
+/**
+ * Helper interface to write an archive entry by entry, mixing files and generated content, see
+ * {@link IArchiveCreator#openWriter()}. A writer is used by a single thread.
+ */
+public interface IArchiveWriter extends Closeable {
+
+    /**
+     * Adds the specified files to the archive. Directories are added with all the files they contain, like
+     * {@link IArchiveCreator#inflate(File...)} does.
+     *
+     * @param files the files or directories to add.
+     * @throws IOException if an io exception occures.
+     */
+    void add(File... files) throws IOException;
+
+    /**
+     * Adds a regular file entry holding the given content. The content is written before the method returns, after
+     * the entries added before it.
+     *
+     * @param name the entry name.
+     * @param mode the permission bits of the entry.
+     * @param lastModified the modification time of the entry, in milliseconds.
+     * @param source the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    void add(String name, int mode, long lastModified, EntrySource source) throws IOException;
+
+    /**
+     * Adds a regular file entry holding the whole content of the given stream, whose length is not known beforehand.
+     * The content is buffered in memory up to a threshold and spilled to a temporary file beyond it, see
+     * {@link AbstractArchiveCreator#setSpillThreshold(int)}. The stream is read until its end but not closed.
+     *
+     * @param name the entry name.
+     * @param mode the permission bits of the entry.
+     * @param lastModified the modification time of the entry, in milliseconds.
+     * @param in the stream holding the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    void add(String name, int mode, long lastModified, InputStream in) throws IOException;
+
+    /**
+     * Starts a regular file entry, added once its content is given.
+     *
+     * @param name the entry name.
+     * @return the entry builder.
+     */
+    ArchiveEntryBuilder newEntry(String name);
+
+    /**
+     * Writes the pending entries and ends the archive. The sidecar files of the archive file are saved once it is
+     * complete, unless an entry failed to be added.
+     *
+     * @throws IOException if an io exception occures.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,21 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helper interface for archive output streams able to copy entry content straight from a file channel, without
+ * passing the bytes through the java heap.
+ */
+public interface ITransferableOutput {
+
+    /**
+     * Transfers a region of the given channel into the current archive entry.
+     *
+     * @param source the channel to read from.
+     * @param position the position of the first byte to transfer.
+     * @param count the number of bytes to transfer.
+     * @throws IOException if an io exception occures.
+     */
+    void transferFrom(FileChannel source, long position, long count) throws IOException;
+}
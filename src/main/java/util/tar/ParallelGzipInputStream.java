@@ -0,0 +1,338 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream inflating the members of a multi-member gzip file on a pool of threads. The members are read with
+ * positional reads on the file channel, inflated concurrently, and their data is returned in order.
+ *
+ * <p>The member boundaries are known without inflating when each member records its size in the BC subfield of its
+ * header, as written by bgzip or by {@link ParallelGzipOutputStream} with independent blocks, see
+ * {@link #scanMembers(FileChannel)}. Data following the last listed member is inflated sequentially.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    /**
+     * Length of the fixed part of the header followed by the extra field length.
+     */
+    private static final int EXTRA_HEADER_LENGTH = 12;
+
+    private static final int TRAILER_LENGTH = 8;
+
+    /**
+     * Largest ratio of inflated to deflated bytes, reached by 258 byte matches coded on 2 bits.
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private final FileChannel channel;
+
+    private final List<long[]> members;
+
+    private final ExecutorService executor;
+
+    /**
+     * Members being inflated, in order.
+     */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private final int maxPending;
+
+    private int nextMember;
+
+    private byte[] current;
+
+    private int position;
+
+    /**
+     * Sequential stream over the data following the listed members, opened once the members are read.
+     */
+    private InputStream tail;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param channel the channel of the gzip file, closed with this stream.
+     * @param members the offset and length of the first members of the file, see {@link #scanMembers(FileChannel)}.
+     * @param threads the number of inflating threads.
+     */
+    public ParallelGzipInputStream(FileChannel channel, List<long[]> members, int threads) {
+        Assert.isTrue(threads > 0, "threads must be positive");
+        this.channel = channel;
+        this.members = members;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("gzip-inflater"));
+        this.maxPending = threads * 2;
+    }
+
+    /**
+     * Lists the members of a gzip file that record their size, from the beginning of the file up to the first member
+     * that does not.
+     *
+     * @param channel the channel of the gzip file.
+     * @return the offset and length of the members, <code>null</code> if the file does not start with two such
+     *         members, and thus cannot be inflated in parallel.
+     * @throws IOException if an io exception occures.
+     */
+    public static List<long[]> scanMembers(FileChannel channel) throws IOException {
+        List<long[]> members = new ArrayList<long[]>();
+        ByteBuffer header = ByteBuffer.allocate(EXTRA_HEADER_LENGTH);
+        byte[] extra = new byte[0xffff];
+        long size = channel.size();
+        long offset = 0;
+        while (offset < size) {
+            header.clear();
+            if (read(channel, header, offset) < EXTRA_HEADER_LENGTH || (header.get(3) & FEXTRA) == 0
+                    || !isMember(header.array())) {
+                break;
+            }
+            int extraLength = (header.get(10) & 0xff) | (header.get(11) & 0xff) << 8;
+            ByteBuffer extraBuffer = ByteBuffer.wrap(extra, 0, extraLength);
+            if (read(channel, extraBuffer, offset + EXTRA_HEADER_LENGTH) < extraLength) {
+                break;
+            }
+            int memberLength = findBlockSize(extra, extraLength);
+            if (memberLength < 0 || offset + memberLength > size) {
+                break;
+            }
+            members.add(new long[] { offset, memberLength });
+            offset += memberLength;
+        }
+        return members.size() > 1 ? members : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            if (!next()) {
+                return tail.read(data, offset, length);
+            }
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, data, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current != null ? current.length - position : 0;
+    }
+
+    /**
+     * Stops the inflating threads and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        try {
+            if (tail != null) {
+                tail.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes the next inflated member current, keeping the pool busy with the following ones.
+     *
+     * @return <code>false</code> once the listed members are read, the tail stream being opened.
+     */
+    private boolean next() throws IOException {
+        while (pending.size() < maxPending && nextMember < members.size()) {
+            final long[] member = members.get(nextMember++);
+            pending.addLast(executor.submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws IOException {
+                    return inflate(member[0], (int) member[1]);
+                }
+            }));
+        }
+
+        if (pending.isEmpty()) {
+            if (tail == null) {
+                long[] last = members.get(members.size() - 1);
+                long end = last[0] + last[1];
+                InputStream remaining = new ChannelSliceInputStream(channel, end, channel.size() - end);
+                tail = end < channel.size() ? Compression.GZIP.decompress(new BufferedInputStream(remaining))
+                        : remaining;
+            }
+            return false;
+        }
+
+        try {
+            current = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the inflating threads");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Reads and inflates a whole member, checking its size and checksum.
+     */
+    private byte[] inflate(long offset, int length) throws IOException {
+        byte[] member = new byte[length];
+        if (read(channel, ByteBuffer.wrap(member), offset) < length) {
+            throw new EOFException("Truncated gzip member at offset " + offset);
+        }
+
+        int dataOffset = skipHeader(member);
+        int trailer = length - TRAILER_LENGTH;
+        int expectedCrc = readIntLE(member, trailer);
+        int expectedSize = readIntLE(member, trailer + 4);
+        // The recorded size is only trusted as far as the deflate data can hold it
+        if (expectedSize < 0 || expectedSize > (long) (trailer - dataOffset) * MAX_DEFLATE_RATIO) {
+            throw new IOException("Invalid gzip member size " + (expectedSize & 0xffffffffL) + " at offset "
+                    + offset);
+        }
+        byte[] data = new byte[expectedSize];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, dataOffset, trailer - dataOffset);
+            int size = 0;
+            while (size < data.length) {
+                int count = inflater.inflate(data, size, data.length - size);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += count;
+            }
+            // The deflate data must end right with the recorded size
+            if (size != data.length || !inflater.finished() && (inflater.inflate(new byte[1]) > 0
+                    || !inflater.finished())) {
+                throw new IOException("Invalid gzip member size at offset " + offset);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip member at offset " + offset, e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Invalid gzip member checksum at offset " + offset);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the offset of the deflate data of a member.
+     */
+    private static int skipHeader(byte[] member) throws IOException {
+        if (member.length < EXTRA_HEADER_LENGTH || !isMember(member)) {
+            throw new IOException("Invalid gzip member header");
+        }
+        int flags = member[3];
+        int position = 10;
+        if ((flags & FEXTRA) != 0) {
+            position += 2 + ((member[10] & 0xff) | (member[11] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            position = skipString(member, position);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            position = skipString(member, position);
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        if (position > member.length - TRAILER_LENGTH) {
+            throw new IOException("Invalid gzip member header");
+        }
+        return position;
+    }
+
+    private static int skipString(byte[] member, int position) {
+        while (position < member.length && member[position] != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static boolean isMember(byte[] header) {
+        return header[0] == 0x1f && header[1] == (byte) 0x8b && header[2] == 8;
+    }
+
+    /**
+     * Returns the member size recorded by the BC subfield of the given extra field, -1 if absent.
+     */
+    private static int findBlockSize(byte[] extra, int extraLength) {
+        int position = 0;
+        while (position + 4 <= extraLength) {
+            int subfieldLength = (extra[position + 2] & 0xff) | (extra[position + 3] & 0xff) << 8;
+            if (extra[position] == 'B' && extra[position + 1] == 'C' && subfieldLength == 2
+                    && position + 6 <= extraLength) {
+                return ((extra[position + 4] & 0xff) | (extra[position + 5] & 0xff) << 8) + 1;
+            }
+            position += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Fills the remaining bytes of the given buffer from the given position, up to the end of the channel.
+     *
+     * @return the number of bytes read.
+     */
+    private static int read(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+                break;
+            }
+        }
+        return buffer.position() - start;
+    }
+}
@@ -0,0 +1,323 @@
+package util.tar;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing blocks of data on a pool of threads, in the way of pigz. The data is cut in fixed
+ * blocks, each block is deflated with the end of the previous block as dictionary and ended on a byte boundary by a
+ * sync flush, and the deflated blocks are written in order as one single gzip member. The output is a standard gzip
+ * stream, readable by any gunzip, and compresses about as well as a sequential stream.
+ *
+ * <p>The checksum is computed on the calling thread while the data is buffered; the deflated blocks are written on
+ * the calling thread as well, so that the wrapped stream is never shared.
+ *
+ * <p>With independent blocks, each block is written as a gzip member of its own, without dictionary, whose size is
+ * recorded in the header as in the BGZF format of bgzip, and an empty member ends the stream. The output is then a
+ * little larger, but {@link ParallelGzipInputStream} can inflate it on several threads as well.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /**
+     * Default size of the compressed blocks.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Largest block of an independent member, so that the deflated member always fits its 16 bits size field.
+     */
+    public static final int MAX_INDEPENDENT_BLOCK_SIZE = 0xff00;
+
+    /**
+     * Size of the deflate window, the longest dictionary used.
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /**
+     * Header of an independent member: the FEXTRA flag is set and the extra field holds the BC subfield with the size
+     * of the member minus one, filled for each member.
+     */
+    private static final byte[] MEMBER_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 4, 0, 0, 0, 0, 0,
+            (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0, 0 };
+
+    private static final int TRAILER_LENGTH = 8;
+
+    private final OutputStream out;
+
+    private final int level;
+
+    private final int blockSize;
+
+    private final ExecutorService executor;
+
+    /**
+     * Blocks being deflated, in output order.
+     */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private final int maxPending;
+
+    private final boolean independent;
+
+    /**
+     * Members written so far with independent blocks, <code>null</code> otherwise.
+     */
+    private final GzipBlockIndex blockIndex;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+
+    private int count;
+
+    /**
+     * Previous block, whose end is the dictionary of the current one.
+     */
+    private byte[] previous;
+
+    private long totalLength;
+
+    private long compressedLength;
+
+    private boolean headerWritten;
+
+    private boolean closed;
+
+    /**
+     * Creates a new stream with the default compression level and block size.
+     *
+     * @param out the stream receiving the gzip data, closed with this stream.
+     * @param threads the number of compressing threads.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, threads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE, false);
+    }
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out the stream receiving the gzip data, closed with this stream.
+     * @param threads the number of compressing threads.
+     * @param level the {@link Deflater} compression level.
+     * @param blockSize the size of the compressed blocks, at least the 32 KiB of the deflate window, at most
+     * {@link #MAX_INDEPENDENT_BLOCK_SIZE} for independent blocks.
+     * @param independent <code>true</code> to write each block as an independent gzip member.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int level, int blockSize, boolean independent) {
+        Assert.isTrue(threads > 0, "threads must be positive");
+        Assert.isTrue(blockSize >= DICTIONARY_SIZE, "blockSize must be at least " + DICTIONARY_SIZE);
+        Assert.isTrue(!independent || blockSize <= MAX_INDEPENDENT_BLOCK_SIZE,
+                "blockSize must be at most " + MAX_INDEPENDENT_BLOCK_SIZE + " for independent blocks");
+        this.out = out;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("gzip-compressor"));
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        this.independent = independent;
+        this.blockIndex = independent ? new GzipBlockIndex() : null;
+    }
+
+    /**
+     * Returns the index of the members written with independent blocks, complete once the stream is closed.
+     *
+     * @return the block index, <code>null</code> without independent blocks.
+     */
+    public GzipBlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (!independent) {
+            crc.update(data, offset, length);
+            totalLength += length;
+        }
+        while (length > 0) {
+            if (count == blockSize) {
+                submit(false);
+            }
+            int chunk = Math.min(length, blockSize - count);
+            System.arraycopy(data, offset, block, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Flushes the blocks already deflated. The current block is only deflated once full, so that flushing does not
+     * degrade the compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeFirst();
+        }
+        out.flush();
+    }
+
+    /**
+     * Deflates the last block, writes the gzip trailer, or the empty member ending independent blocks, and closes the
+     * wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (independent && count > 0) {
+                submit(false);
+            }
+            submit(true);
+            while (!pending.isEmpty()) {
+                writeFirst();
+            }
+            if (!independent) {
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, (int) totalLength);
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the current block over to the compressing threads, writing the oldest deflated blocks when too many are
+     * pending.
+     */
+    private void submit(final boolean last) throws IOException {
+        while (pending.size() >= maxPending) {
+            writeFirst();
+        }
+
+        final byte[] data = block;
+        final int length = count;
+        final byte[] dictionary = previous;
+        pending.addLast(executor.submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws IOException {
+                return independent ? deflateMember(data, length) : deflate(data, length, dictionary, last);
+            }
+        }));
+        previous = data;
+        block = new byte[blockSize];
+        count = 0;
+    }
+
+    private void writeFirst() throws IOException {
+        if (!headerWritten && !independent) {
+            out.write(HEADER);
+            headerWritten = true;
+        }
+
+        byte[] deflated;
+        try {
+            deflated = pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compressing threads");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress the archive", e.getCause());
+        }
+        out.write(deflated);
+        if (independent) {
+            int memberLength = readIntLE(deflated, deflated.length - 4);
+            // Empty members hold no data to seek to
+            if (compressedLength > 0 && memberLength > 0) {
+                blockIndex.add(compressedLength, totalLength);
+            }
+            compressedLength += deflated.length;
+            totalLength += memberLength;
+        }
+    }
+
+    /**
+     * Deflates a block as raw deflate data ending on a byte boundary, or ending the deflate stream for the last
+     * block.
+     */
+    private byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] output = new byte[length + length / 8 + 64];
+            int size = 0;
+            while (true) {
+                if (size == output.length) {
+                    byte[] larger = new byte[output.length * 2];
+                    System.arraycopy(output, 0, larger, 0, size);
+                    output = larger;
+                }
+                int space = output.length - size;
+                int deflated = deflater.deflate(output, size, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += deflated;
+                // A flush is complete once it leaves free space, the stream once the deflater says so
+                if (last ? deflater.finished() : deflated < space) {
+                    break;
+                }
+            }
+
+            byte[] result = new byte[size];
+            System.arraycopy(output, 0, result, 0, size);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Deflates a block as a complete gzip member recording its own size.
+     */
+    private byte[] deflateMember(byte[] data, int length) throws IOException {
+        byte[] deflated = deflate(data, length, null, true);
+        int size = MEMBER_HEADER.length + deflated.length + TRAILER_LENGTH;
+        CRC32 memberCrc = new CRC32();
+        memberCrc.update(data, 0, length);
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream(size);
+        member.write(MEMBER_HEADER, 0, MEMBER_HEADER.length - 2);
+        member.write((size - 1) & 0xff);
+        member.write(((size - 1) >>> 8) & 0xff);
+        member.write(deflated);
+        writeIntLE(member, (int) memberCrc.getValue());
+        writeIntLE(member, length);
+        return member.toByteArray();
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+}
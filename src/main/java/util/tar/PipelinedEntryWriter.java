@@ -0,0 +1,248 @@
+package util.tar;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+
+/**
+ * Writes archive entries in the order they are added while a pool of reader threads prefetches the contents of the
+ * upcoming files into bounded heap buffers.
+ *
+ * <p>With a single reader thread no pool is started and every entry is written as soon as it is added.
+ *
+ * @param <O> the archive output stream.
+ * @param <E> the archive entry.
+ */
+class PipelinedEntryWriter<O extends ArchiveOutputStream, E extends ArchiveEntry> implements Closeable {
+
+    /**
+     * Maximum number of queued entries per reader thread, bounds the queue when entries are empty or not prefetched.
+     */
+    private static final int MAX_PENDING_PER_THREAD = 16;
+
+    private final AbstractArchiveCreator<O, E> creator;
+
+    private final O outStream;
+
+    private final ExecutorService executor;
+
+    private final long memoryBudget;
+
+    private final long maxPrefetchSize;
+
+    private final int maxPending;
+
+    private final ArchiveIndex index;
+
+    private final Deque<PendingEntry> pending = new ArrayDeque<PendingEntry>();
+
+    /**
+     * Bytes currently held by prefetched but not yet written entries.
+     */
+    private long bufferedBytes;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param creator the creator writing the entry contents.
+     * @param outStream the archive output stream.
+     * @param readThreads the number of reader threads, 1 writes every entry directly.
+     * @param memoryBudget the maximum number of bytes held by prefetched entries.
+     * @param index the index recording the written entries, may be <code>null</code>.
+     */
+    PipelinedEntryWriter(AbstractArchiveCreator<O, E> creator, O outStream, int readThreads, long memoryBudget,
+            ArchiveIndex index) {
+        this.creator = creator;
+        this.index = index;
+        this.outStream = outStream;
+        this.memoryBudget = memoryBudget;
+        this.maxPrefetchSize = Math.min(memoryBudget / Math.max(readThreads, 1), Integer.MAX_VALUE - 8);
+        this.maxPending = Math.max(readThreads, 1) * MAX_PENDING_PER_THREAD;
+        this.executor = readThreads > 1
+                ? Executors.newFixedThreadPool(readThreads, new DaemonThreadFactory("archive-reader")) : null;
+    }
+
+    /**
+     * Adds an entry to the archive. The entry is written once all previously added entries have been written.
+     *
+     * @param entry the archive entry.
+     * @param file the file holding the entry content, <code>null</code> for directories.
+     * @throws IOException if an io exception occures.
+     */
+    void add(E entry, File file) throws IOException {
+        if (executor == null) {
+            writeEntry(entry, file, null, null);
+            return;
+        }
+
+        // Write everything the readers already finished before queueing more work
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeNext();
+        }
+
+        long size = file != null && creator.isStoredAsIs(entry) ? entry.getSize() : 0;
+        long cost = size > 0 && size <= maxPrefetchSize ? size : 0;
+        while (!pending.isEmpty() && (pending.size() >= maxPending || bufferedBytes + cost > memoryBudget)) {
+            writeNext();
+        }
+
+        Future<byte[]> content = null;
+        if (cost > 0) {
+            bufferedBytes += cost;
+            content = executor.submit(new FileReader(file, (int) cost));
+        }
+        pending.addLast(new PendingEntry(entry, file, content, cost));
+    }
+
+    /**
+     * Adds an entry with the given content to the archive. The pending entries are written first, then the entry, so
+     * that the source is consumed when the method returns.
+     *
+     * @param entry the archive entry.
+     * @param source the entry content.
+     * @throws IOException if an io exception occures.
+     */
+    void write(E entry, EntrySource source) throws IOException {
+        flush();
+        writeEntry(entry, null, null, source);
+    }
+
+    /**
+     * Writes all pending entries.
+     *
+     * @throws IOException if an io exception occures.
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Stops the reader threads. Pending entries that were not flushed are discarded.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            for (PendingEntry entry : pending) {
+                if (entry.content != null) {
+                    entry.content.cancel(true);
+                }
+            }
+            pending.clear();
+            executor.shutdownNow();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        PendingEntry next = pending.removeFirst();
+        try {
+            writeEntry(next.entry, next.file, next.content != null ? getContent(next.content) : null, null);
+        } finally {
+            bufferedBytes -= next.cost;
+        }
+    }
+
+    private void writeEntry(E entry, File file, byte[] content, EntrySource source) throws IOException {
+        long headerOffset = outStream.getBytesWritten();
+        outStream.putArchiveEntry(entry);
+        String linkTarget = index != null ? creator.getLinkTarget(entry) : null;
+        if (linkTarget != null) {
+            index.addLink(entry.getName(), headerOffset, linkTarget, entry.getLastModifiedDate().getTime());
+        } else if (index != null) {
+            long size = entry.isDirectory() ? 0 : entry.getSize();
+            long dataOffset = entry.isDirectory() || creator.isStoredAsIs(entry) ? outStream.getBytesWritten() : -1;
+            index.add(new ArchiveIndex.Entry(entry.getName(), headerOffset, dataOffset, size,
+                    entry.getLastModifiedDate().getTime(), entry.isDirectory()));
+        }
+        try {
+            if (content != null) {
+                outStream.write(content, 0, content.length);
+            } else if (file != null) {
+                creator.writeContent(outStream, entry, file);
+            } else if (source != null) {
+                source.writeTo(outStream);
+            }
+        } finally {
+            outStream.closeArchiveEntry();
+        }
+    }
+
+    private static byte[] getContent(Future<byte[]> content) throws IOException {
+        try {
+            return content.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for prefetched content");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Queued entry with its prefetched content.
+     */
+    private class PendingEntry {
+
+        private final E entry;
+
+        private final File file;
+
+        private final Future<byte[]> content;
+
+        private final long cost;
+
+        PendingEntry(E entry, File file, Future<byte[]> content, long cost) {
+            this.entry = entry;
+            this.file = file;
+            this.content = content;
+            this.cost = cost;
+        }
+
+        boolean isDone() {
+            return content == null || content.isDone();
+        }
+    }
+
+    /**
+     * Reads a whole file into a byte array.
+     */
+    private static class FileReader implements Callable<byte[]> {
+
+        private final File file;
+
+        private final int size;
+
+        FileReader(File file, int size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            byte[] data = new byte[size];
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int count;
+                while (offset < size && (count = inputStream.read(data, offset, size - offset)) != -1) {
+                    offset += count;
+                }
+                if (offset < size) {
+                    throw new EOFException("File " + file + " was truncated while being archived");
+                }
+            } finally {
+                inputStream.close();
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data segments of a sparse file: the regions of the file holding data, everything else being holes that read as
+ * zeros. A file ending with a hole has a last segment of length zero at its size.
+ */
+public class SparseFileMap {
+
+    /**
+     * Granularity of the hole detection, the tar record size.
+     */
+    public static final int BLOCK_SIZE = 512;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of blocks read by {@link #mayHaveHoles(File)}.
+     */
+    private static final int PROBE_COUNT = 64;
+
+    /**
+     * Alignment of the probed blocks, the usual file system block size: holes start on such a boundary.
+     */
+    private static final int PROBE_ALIGNMENT = 4096;
+
+    private final long realSize;
+
+    private final List<long[]> segments = new ArrayList<long[]>();
+
+    private long storedSize;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param realSize the size of the file.
+     */
+    public SparseFileMap(long realSize) {
+        this.realSize = realSize;
+    }
+
+    /**
+     * Adds a data segment, after the previous ones.
+     *
+     * @param offset the offset of the segment in the file.
+     * @param length the length of the segment.
+     */
+    public void add(long offset, long length) {
+        segments.add(new long[] { offset, length });
+        storedSize += length;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getOffset(int segment) {
+        return segments.get(segment)[0];
+    }
+
+    public long getLength(int segment) {
+        return segments.get(segment)[1];
+    }
+
+    /**
+     * @return the size of the file, holes included.
+     */
+    public long getRealSize() {
+        return realSize;
+    }
+
+    /**
+     * @return the number of data bytes.
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    /**
+     * @return <code>true</code> if the file has at least one hole.
+     */
+    public boolean hasHoles() {
+        return storedSize < realSize;
+    }
+
+    /**
+     * Probes blocks spread evenly over the given file for zeros, so that files without holes are not read twice.
+     * Java cannot query the holes nor the allocated blocks of a file, a few blocks are read instead: a file whose
+     * holes cover a small part of it may be reported as dense, and is then archived as a whole, which is still
+     * correct.
+     *
+     * @param file the file.
+     * @return <code>false</code> if no probed block is zero, <code>true</code> if the file is worth a
+     *         {@link #scan(File)}.
+     * @throws IOException if an io exception occures.
+     */
+    public static boolean mayHaveHoles(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long previous = -1;
+            for (int i = 0; i < PROBE_COUNT; i++) {
+                long position = size / PROBE_COUNT * i / PROBE_ALIGNMENT * PROBE_ALIGNMENT;
+                if (position == previous) {
+                    continue;
+                }
+                previous = position;
+                int count = read(channel, buffer, position, (int) Math.min(BLOCK_SIZE, size - position));
+                if (count > 0 && isZero(buffer, 0, count)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Finds the data segments of the given file by looking for blocks of zeros. Java cannot query the holes of a file
+     * system, so the whole file is read.
+     *
+     * @param file the file.
+     * @return the map of the file.
+     * @throws IOException if an io exception occures.
+     */
+    public static SparseFileMap scan(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            SparseFileMap map = new SparseFileMap(size);
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            long dataStart = -1;
+            long position = 0;
+            while (position < size) {
+                int count = read(channel, buffer, position, (int) Math.min(SCAN_BUFFER_SIZE, size - position));
+                if (count == 0) {
+                    throw new EOFException("File " + file + " was truncated while being scanned");
+                }
+
+                for (int block = 0; block < count; block += BLOCK_SIZE) {
+                    boolean zero = isZero(buffer, block, Math.min(block + BLOCK_SIZE, count));
+                    if (!zero && dataStart < 0) {
+                        dataStart = position + block;
+                    } else if (zero && dataStart >= 0) {
+                        map.add(dataStart, position + block - dataStart);
+                        dataStart = -1;
+                    }
+                }
+                position += count;
+            }
+
+            if (dataStart >= 0) {
+                map.add(dataStart, size - dataStart);
+            } else {
+                // Record the real size for readers that only rely on the segments
+                map.add(size, 0);
+            }
+            return map;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads up to the given number of bytes from the given position.
+     *
+     * @return the number of bytes read, less than requested at the end of the file.
+     */
+    private static int read(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,232 @@
+package util.tar;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output stream buffering content of unknown length, such as a generated entry, until its size is known. The content
+ * is held in memory up to a threshold and spilled to a temporary file beyond it. The buffer is meant to be reused:
+ * {@link #reset()} deletes the temporary file but keeps the memory, so that small contents cause no allocation once
+ * the buffer has grown.
+ */
+public class SpillBuffer extends OutputStream {
+
+    /**
+     * Default number of bytes held in memory.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final int threshold;
+
+    private final File directory;
+
+    private byte[] memory = new byte[0];
+
+    private int count;
+
+    private File spillFile;
+
+    private OutputStream spillStream;
+
+    private long size;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param threshold the number of bytes held in memory at most.
+     * @param directory the directory of the temporary file, <code>null</code> for the default temporary directory.
+     */
+    public SpillBuffer(int threshold, File directory) {
+        Assert.isTrue(threshold >= 0, "threshold must not be negative");
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (spillStream == null && count + length > threshold) {
+            spill();
+        }
+        if (spillStream != null) {
+            spillStream.write(data, offset, length);
+        } else {
+            ensureCapacity(count + length);
+            System.arraycopy(data, offset, memory, count, length);
+            count += length;
+        }
+        size += length;
+    }
+
+    /**
+     * Appends the whole content of the given stream, which is not closed.
+     *
+     * @param in the stream to read until its end.
+     * @return the number of bytes read.
+     * @throws IOException if an io exception occures.
+     */
+    public long readFrom(InputStream in) throws IOException {
+        long total = 0;
+        while (true) {
+            if (spillStream == null && count < threshold) {
+                // Reads straight into the memory buffer while the content fits
+                ensureCapacity(Math.min(Math.max(count + 1, memory.length), threshold));
+                int read = in.read(memory, count, Math.min(memory.length, threshold) - count);
+                if (read < 0) {
+                    return total;
+                }
+                count += read;
+                size += read;
+                total += read;
+                continue;
+            }
+            byte[] buffer = new byte[FILE_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                write(buffer, 0, read);
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @return the number of bytes written since the last reset.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if the content was spilled to a temporary file.
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * Writes the buffered content into the given stream, transferring a spilled content from its file channel into an
+     * {@link ITransferableOutput}.
+     *
+     * @param out the stream receiving the content.
+     * @throws IOException if an io exception occures.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (spillStream == null) {
+            out.write(memory, 0, count);
+            return;
+        }
+
+        spillStream.flush();
+        FileInputStream fileInputStream = new FileInputStream(spillFile);
+        try {
+            if (out instanceof ITransferableOutput) {
+                FileChannel channel = fileInputStream.getChannel();
+                ((ITransferableOutput) out).transferFrom(channel, 0, size);
+                return;
+            }
+            byte[] buffer = new byte[FILE_BUFFER_SIZE];
+            long remaining = size;
+            while (remaining > 0) {
+                int read = fileInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Spill file " + spillFile + " was truncated");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    /**
+     * Returns the source of the buffered content, valid until the buffer is reset.
+     *
+     * @return the entry source.
+     */
+    public EntrySource toSource() {
+        return new EntrySource() {
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                SpillBuffer.this.writeTo(out);
+            }
+        };
+    }
+
+    /**
+     * Drops the content and deletes the temporary file, keeping the memory buffer for the next content.
+     *
+     * @throws IOException if an io exception occures.
+     */
+    public void reset() throws IOException {
+        count = 0;
+        size = 0;
+        if (spillFile == null) {
+            return;
+        }
+        try {
+            spillStream.close();
+        } finally {
+            File file = spillFile;
+            spillStream = null;
+            spillFile = null;
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Unable to delete the spill file " + file);
+            }
+        }
+    }
+
+    /**
+     * Resets the buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        reset();
+    }
+
+    /**
+     * Moves the content held in memory to a new temporary file, further content being appended to the file.
+     */
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("archive-entry", ".spill", directory);
+        try {
+            spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), FILE_BUFFER_SIZE);
+            spillStream.write(memory, 0, count);
+        } catch (IOException e) {
+            if (spillStream != null) {
+                spillStream.close();
+            }
+            spillFile.delete();
+            spillFile = null;
+            spillStream = null;
+            throw e;
+        }
+        count = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= memory.length) {
+            return;
+        }
+        int newCapacity = Math.max(memory.length * 2, INITIAL_CAPACITY);
+        newCapacity = Math.min(Math.max(newCapacity, capacity), threshold);
+        byte[] larger = new byte[newCapacity];
+        System.arraycopy(memory, 0, larger, 0, count);
+        memory = larger;
+    }
+}
@@ -0,0 +1,168 @@
+package util.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Test for the ant path matcher.
+ */
+public class AntPathMatcherTest extends AbstractJunitTest {
+
+    @Test
+    public void testMatch() {
+        AntPathMatcher matcher = new AntPathMatcher();
+        assertTrue(matcher.match("test", "test"));
+        assertTrue(matcher.match("/test", "/test"));
+        assertFalse(matcher.match("/test.jpg", "test.jpg"));
+        assertFalse(matcher.match("test", "/test"));
+        assertTrue(matcher.match("t?st", "test"));
+        assertTrue(matcher.match("??st", "test"));
+        assertFalse(matcher.match("tes?", "tes"));
+        assertFalse(matcher.match("tes?", "testt"));
+        assertTrue(matcher.match("?.txt", "\uD83D\uDE00.txt"));
+        assertTrue(matcher.match("a?b", "a\uD83D\uDE00b"));
+        assertFalse(matcher.match("??", "\uD83D\uDE00"));
+        assertTrue(matcher.match("a*?b", "a\uD83D\uDE00\uD83D\uDE01b"));
+        assertTrue(matcher.match("*", "test"));
+        assertTrue(matcher.match("test*", "test"));
+        assertTrue(matcher.match("test*", "testTest"));
+        assertTrue(matcher.match("*.*", "test.test"));
+        assertTrue(matcher.match("*.mp4", "AV_Defender.mp4"));
+        assertFalse(matcher.match("*.mp4", "AV_Defender.webm"));
+        assertTrue(matcher.match("In_*.webm", "In_sea.webm"));
+        assertFalse(matcher.match("test*aaa", "testblaaab"));
+        assertTrue(matcher.match("*test*", "AnothertestTest"));
+        assertTrue(matcher.match("a*b*c", "abc"));
+        assertTrue(matcher.match("a*b*c", "axxbyyc"));
+        assertFalse(matcher.match("a*b*c", "axxbyy"));
+        assertTrue(matcher.match("[a].txt", "[a].txt"));
+        assertFalse(matcher.match("[a].txt", "a.txt"));
+        assertTrue(matcher.match("/*/bla", "/x/bla"));
+        assertTrue(matcher.match("/**", "/testing/testing"));
+        assertTrue(matcher.match("/*/**", "/testing/testing"));
+        assertTrue(matcher.match("/**/*", "/testing/testing"));
+        assertTrue(matcher.match("/bla/**/bla", "/bla/testing/testing/bla"));
+        assertTrue(matcher.match("/bla/**/bla", "/bla/bla"));
+        assertTrue(matcher.match("/bla*bla/test", "/blaXXXbla/test"));
+        assertFalse(matcher.match("/bla*bla/test", "/blaXXXbl/test"));
+        assertTrue(matcher.match("/**/*bla", "/bla/bla/bla/bbb/bla"));
+        assertTrue(matcher.match("/*bla*/**/bla/**", "/XXXblaXXXX/testing/testing/bla/testing/testing/"));
+        assertFalse(matcher.match("/x/x/**/bla", "/x/x/x/"));
+        assertTrue(matcher.match("", ""));
+        assertTrue(matcher.match("/{bla}.*", "/testing.html"));
+        assertTrue(matcher.match("/{id:\\d+}", "/42"));
+        assertFalse(matcher.match("/{id:\\d+}", "/x42"));
+        assertEquals("42", matcher.extractUriTemplateVariables("/hotels/{id:\\d+}", "/hotels/42").get("id"));
+    }
+
+    @Test
+    public void testMatchStart() {
+        AntPathMatcher matcher = new AntPathMatcher();
+        assertTrue(matcher.matchStart("/x/x/**/bla", "/x/x/x/"));
+        assertTrue(matcher.matchStart("/bla/**/bla", "/bla"));
+        assertTrue(matcher.matchStart("/*/bla", "/x"));
+        assertFalse(matcher.matchStart("/a/bla", "/b"));
+        assertTrue(matcher.matchStart("/**/bla", "/testing/testing"));
+    }
+
+    @Test
+    public void testMatchSegmentsAsTokenized() {
+        // Segments are split on separators, trimmed, and empty ones are left out
+        AntPathMatcher matcher = new AntPathMatcher();
+        assertTrue(matcher.match("a/b", " a / b "));
+        assertTrue(matcher.match("a/b", "a//b"));
+        assertTrue(matcher.match("/a/**/c", "/a/ /b/ c"));
+        assertFalse(matcher.match("a/*", "a/ "));
+        assertTrue(matcher.matchStart("a/*", "a/ "));
+        assertFalse(matcher.match("*/b", " /b"));
+        assertTrue(matcher.match("/**/b/*", "/x/b/y/b/z"));
+        assertTrue(matcher.match("a/**/b/c/**/d", "a/x/b/c/y/d"));
+        assertFalse(matcher.match("a/**/b/c/**/d", "a/b/x/c/d"));
+        assertTrue(matcher.matchStart("a/**/b/c/**/d", "a/b/x/c/d"));
+    }
+
+    @Test
+    public void testMatchAllocatesNothing() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        AntPathMatcher matcher = new AntPathMatcher();
+        String[] patterns = { "Catalog/*.txt", "/bla/**/y/**/bla", "*.mp4" };
+        String[] paths = { "Catalog/testFileCatalog.txt", "/bla/x/y/z/bla", "AV_Defender.mp4" };
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 3; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 30000; i++) {
+                assertTrue(matcher.match(patterns[i % 3], paths[i % 3]));
+            }
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        }
+        // Warmed up: the patterns are cached and the paths are walked by offsets
+        assertTrue(allocated + " bytes", allocated < 30000);
+        System.out.println("Allocation free matching done");
+    }
+
+    @Test
+    public void testGlobMatchesRegularExpression() {
+        Random random = new Random(3);
+        // Surrogate pairs, which '.' matches as a single code point
+        String[] patternChars = { "a", "b", ".", "\n", "*", "?", "\uD83D\uDE00", "\uD83D\uDE01" };
+        String[] strChars = { "a", "b", ".", "\n", "\uD83D\uDE00", "\uD83D\uDE01" };
+        for (int i = 0; i < 20000; i++) {
+            String pattern = randomString(random, patternChars, 6);
+            String str = randomString(random, strChars, 8);
+            StringBuilder regex = new StringBuilder();
+            for (int j = 0; j < pattern.length(); j += Character.charCount(pattern.codePointAt(j))) {
+                int c = pattern.codePointAt(j);
+                regex.append(c == '*' ? ".*" : c == '?' ? "." : Pattern.quote(new String(Character.toChars(c))));
+            }
+            assertEquals(pattern + " " + str, Pattern.matches(regex.toString(), str),
+                    new AntPathStringMatcher(pattern).matchStrings(str, null));
+        }
+    }
+
+    @Test
+    public void testPatternCache() {
+        AntPathMatcher matcher = new AntPathMatcher();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(matcher.match("Catalog/*.txt", "Catalog/file" + i + ".txt"));
+        }
+        // One tokenized pattern and two segments compiled once
+        assertEquals(3, matcher.getCacheMisses());
+        assertEquals(99 * 3, matcher.getCacheHits());
+
+        matcher.setCachePatterns(false);
+        matcher.match("Catalog/*.txt", "Catalog/file.txt");
+        assertEquals(3, matcher.getCacheMisses());
+        assertEquals(99 * 3, matcher.getCacheHits());
+
+        // Generated patterns turn the cache off by themselves
+        AntPathMatcher generated = new AntPathMatcher();
+        for (int i = 0; i < 70000; i++) {
+            assertTrue(generated.match("file" + i + ".txt", "file" + i + ".txt"));
+        }
+        long misses = generated.getCacheMisses();
+        generated.match("Catalog/*.txt", "Catalog/file.txt");
+        generated.match("Catalog/*.txt", "Catalog/file.txt");
+        assertEquals(misses, generated.getCacheMisses());
+        assertEquals(0, generated.getCacheHits());
+        System.out.println("Pattern cache done");
+    }
+
+    private static String randomString(Random random, String[] chars, int maxLength) {
+        StringBuilder string = new StringBuilder();
+        for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+            string.append(chars[random.nextInt(chars.length)]);
+        }
+        return string.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package util.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import tar.TarCreator;
+
+/**
+ * Test for the concurrent archive sink.
+ */
+public class ConcurrentArchiveSinkTest extends AbstractJunitTest {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int ENTRIES_PER_PRODUCER = 50;
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        File spillDirectory = new File(WORK_HOME, "SinkSpill");
+        FileUtils.deleteDirectory(spillDirectory);
+        spillDirectory.mkdirs();
+
+        File archive = new File(WORK_HOME, "testTarFileSink.tar");
+        TarCreator creator = new TarCreator(archive);
+        creator.setWriteIndex(true);
+        final ConcurrentArchiveSink sink = new ConcurrentArchiveSink(creator.openWriter(), 4096, spillDirectory);
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            List<Future<Void>> producers = new ArrayList<Future<Void>>();
+            for (int producer = 0; producer < PRODUCERS; producer++) {
+                final int id = producer;
+                producers.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+                        for (int i = 0; i < ENTRIES_PER_PRODUCER; i++) {
+                            byte[] content = content(id, i);
+                            if (i % 2 == 0) {
+                                sink.addEntry(id + "/" + i, 0644, 1000000000000L, content);
+                            } else {
+                                sink.addEntry(id + "/" + i, 0644, 1000000000000L,
+                                        new ByteArrayInputStream(content));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> producer : producers) {
+                producer.get();
+            }
+        } finally {
+            executor.shutdown();
+            sink.close();
+        }
+        assertEquals(0, spillDirectory.list().length);
+
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(archive));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                entries.put(entry.getName(), IOUtils.toByteArray(in));
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(PRODUCERS * ENTRIES_PER_PRODUCER, entries.size());
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            for (int i = 0; i < ENTRIES_PER_PRODUCER; i++) {
+                assertArrayEquals(content(producer, i), entries.get(producer + "/" + i));
+            }
+        }
+        assertEquals(PRODUCERS * ENTRIES_PER_PRODUCER, ArchiveIndex.load(archive).getEntries().size());
+        System.out.println("Create testTarFileSink.tar done");
+    }
+
+    @Test
+    public void testSerializerStopped() throws Exception {
+        File archive = new File(WORK_HOME, "testTarFileSinkStopped.tar");
+        final IArchiveWriter target = new TarCreator(archive).openWriter();
+        final CountDownLatch release = new CountDownLatch(1);
+        // Holds the first entry until released, then kills the serializer
+        IArchiveWriter writer = new IArchiveWriter() {
+
+            @Override
+            public void add(File... files) throws IOException {
+                target.add(files);
+            }
+
+            @Override
+            public void add(String name, int mode, long lastModified, EntrySource source) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new OutOfMemoryError("Simulated failure of the serializer");
+            }
+
+            @Override
+            public void add(String name, int mode, long lastModified, InputStream in) throws IOException {
+                target.add(name, mode, lastModified, in);
+            }
+
+            @Override
+            public ArchiveEntryBuilder newEntry(String name) {
+                return target.newEntry(name);
+            }
+
+            @Override
+            public void close() throws IOException {
+                target.close();
+            }
+        };
+
+        final ConcurrentArchiveSink sink = new ConcurrentArchiveSink(writer);
+        sink.addEntry("first", 0644, 1000000000000L, new byte[] { 1 });
+        // Queues two entries behind the first one, then waits for one of its buffers
+        FutureTask<Void> producer = new FutureTask<Void>(new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                for (int i = 0; i < 3; i++) {
+                    sink.addEntry("second/" + i, 0644, 1000000000000L, new byte[] { 2 });
+                }
+                return null;
+            }
+        });
+        Thread thread = new Thread(producer);
+        thread.setDaemon(true);
+        thread.start();
+        while (thread.isAlive() && thread.getState() != Thread.State.WAITING
+                && thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        try {
+            producer.get(10, TimeUnit.SECONDS);
+            fail("The producer must fail once the serializer stopped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } catch (TimeoutException e) {
+            fail("The producer still waits for a buffer");
+        }
+        try {
+            sink.close();
+            fail("The sink must report the failure of the serializer");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+        System.out.println("Stopped archive sink done");
+    }
+
+    /**
+     * Returns a content of a size depending on the entry, every fifth entry being spilled.
+     */
+    private static byte[] content(int producer, int entry) {
+        byte[] content = new byte[entry % 5 == 0 ? 10000 + entry : 100 + entry];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (producer * 31 + entry + i);
+        }
+        return content;
+    }
+}
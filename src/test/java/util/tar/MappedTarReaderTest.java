@@ -0,0 +1,58 @@
+package util.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import tar.MappedTarReader;
+import tar.TarCreator;
+
+/**
+ * Test for the memory mapped tar reader.
+ */
+public class MappedTarReaderTest extends AbstractJunitTest {
+
+    @Test
+    public void testReadMapped() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileMapped.tar");
+        new TarCreator(archive).inflate(input);
+
+        // Small chunks make most entries cross a chunk boundary
+        for (int chunkSize : new int[] { MappedTarReader.DEFAULT_CHUNK_SIZE, 4096 }) {
+            Map<String, ByteBuffer> contents = new HashMap<String, ByteBuffer>();
+            MappedTarReader reader = new MappedTarReader(archive, chunkSize);
+            try {
+                for (TarArchiveEntry entry = reader.getNextEntry(); entry != null; entry = reader.getNextEntry()) {
+                    ByteBuffer content = reader.getContent();
+                    assertTrue(content.isReadOnly());
+                    if (!entry.isDirectory()) {
+                        contents.put(entry.getName(), content);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            for (String name : new String[] { "testFile.txt", "Photo.jpg", "In_sea.webm", "AV_Defender.mp4",
+                    "Catalog/testFileCatalog.txt" }) {
+                ByteBuffer content = contents.get(name);
+                assertNotNull(name, content);
+                byte[] data = new byte[content.remaining()];
+                content.get(data);
+                assertTrue(name, Arrays.equals(FileUtils.readFileToByteArray(new File(input, name)), data));
+            }
+            assertEquals(6, contents.size());
+        }
+        System.out.println("Mapped read done");
+    }
+}
@@ -0,0 +1,125 @@
+package util.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import tar.TarCreator;
+import tar.TarExtractor;
+
+/**
+ * Test for the parallel inflation of multi-member gzip files.
+ */
+public class ParallelGzipInputStreamTest extends AbstractJunitTest {
+
+    @Test
+    public void testIndependentBlocks() throws Exception {
+        byte[] data = new byte[300 * 1024];
+        new Random(7).nextBytes(data);
+        for (int i = 0; i < data.length; i += 3) {
+            data[i] = 0;
+        }
+        byte[] extra = "data of a plain member".getBytes("UTF-8");
+
+        File file = new File(WORK_HOME, "testIndependent.gz");
+        OutputStream out = new ParallelGzipOutputStream(new FileOutputStream(file), 3, 6,
+                ParallelGzipOutputStream.MAX_INDEPENDENT_BLOCK_SIZE, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        // A member without size, inflated sequentially
+        out = new GZIPOutputStream(new FileOutputStream(file, true));
+        try {
+            out.write(extra);
+        } finally {
+            out.close();
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        List<long[]> members = ParallelGzipInputStream.scanMembers(channel);
+        // Five blocks and the empty last member
+        assertEquals(6, members.size());
+        InputStream in = new ParallelGzipInputStream(channel, members, 3);
+        byte[] inflated;
+        try {
+            inflated = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(data.length + extra.length, inflated.length);
+        assertArrayEquals(data, Arrays.copyOf(inflated, data.length));
+        assertArrayEquals(extra, Arrays.copyOfRange(inflated, data.length, inflated.length));
+        assertArrayEquals(inflated, IOUtils.toByteArray(new GZIPInputStream(new FileInputStream(file))));
+        System.out.println("Independent gzip blocks done");
+    }
+
+    @Test
+    public void testRejectOversizedMember() throws Exception {
+        byte[] data = new byte[200 * 1024];
+        new Random(11).nextBytes(data);
+        File file = new File(WORK_HOME, "testOversizedMember.gz");
+        OutputStream out = new ParallelGzipOutputStream(new FileOutputStream(file), 2, 6,
+                ParallelGzipOutputStream.MAX_INDEPENDENT_BLOCK_SIZE, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        // The first member claims to inflate to 2 GiB
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        List<long[]> members = ParallelGzipInputStream.scanMembers(channel);
+        long sizeOffset = members.get(0)[0] + members.get(0)[1] - 4;
+        channel.write(ByteBuffer.wrap(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f }), sizeOffset);
+        InputStream in = new ParallelGzipInputStream(channel, members, 2);
+        try {
+            IOUtils.toByteArray(in);
+            fail("Oversized member inflated");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid gzip member size"));
+        } finally {
+            in.close();
+        }
+        System.out.println("Oversized gzip member done");
+    }
+
+    @Test
+    public void testDeflateIndependentBlocks() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileIndependent.tar.gz");
+        TarCreator creator = new TarCreator(archive);
+        creator.setCompression(Compression.GZIP);
+        creator.setCompressionThreads(4);
+        creator.setIndependentBlocks(true);
+        creator.inflate(input);
+
+        File destination = new File(WORK_HOME, "IndependentGzip");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+        TarExtractor extractor = new TarExtractor(new FileSystemResource(archive));
+        extractor.setDecompressionThreads(4);
+        extractor.deflate(destination);
+        for (String name : new String[] { "testFile.txt", "In_sea.webm", "In_ad.webm", "AV_Defender.mp4",
+                "Photo.jpg", "Catalog/testFileCatalog.txt" }) {
+            assertTrue(name, FileUtils.contentEquals(new File(input, name), new File(destination, name)));
+        }
+        System.out.println("Deflate testTarFileIndependent.tar.gz done");
+    }
+}
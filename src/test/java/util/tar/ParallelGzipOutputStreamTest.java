@@ -0,0 +1,80 @@
+package util.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import tar.TarCreator;
+import tar.TarExtractor;
+
+/**
+ * Test for the block-parallel gzip output stream.
+ */
+public class ParallelGzipOutputStreamTest extends AbstractJunitTest {
+
+    @Test
+    public void testCompress() throws Exception {
+        // Repeated random lines, so that the dictionaries matter
+        Random random = new Random(42);
+        byte[] line = new byte[300];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 50 == 0) {
+                random.nextBytes(line);
+            }
+            expected.write(line, 0, 1 + random.nextInt(line.length));
+        }
+        byte[] data = expected.toByteArray();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new ParallelGzipOutputStream(compressed, 4, 6, 32 * 1024, false);
+        try {
+            // Writes across block boundaries
+            for (int offset = 0; offset < data.length; offset += 10000) {
+                out.write(data, offset, Math.min(10000, data.length - offset));
+            }
+        } finally {
+            out.close();
+        }
+        assertTrue(compressed.size() < data.length / 10);
+        assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(compressed.toByteArray()))));
+
+        compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, 2).close();
+        assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(compressed.toByteArray()))).length);
+        System.out.println("Parallel gzip done");
+    }
+
+    @Test
+    public void testInflateParallelGzip() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileParallel.tar.gz");
+        TarCreator creator = new TarCreator(archive);
+        creator.setCompression(Compression.GZIP);
+        creator.setCompressionThreads(4);
+        creator.inflate(input);
+
+        File destination = new File(WORK_HOME, "ParallelGzip");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+        // A single member, inflated sequentially
+        TarExtractor extractor = new TarExtractor(new FileSystemResource(archive));
+        extractor.setDecompressionThreads(4);
+        extractor.deflate(destination);
+        for (String name : new String[] { "testFile.txt", "In_sea.webm", "In_ad.webm", "AV_Defender.mp4",
+                "Photo.jpg", "Catalog/testFileCatalog.txt" }) {
+            assertTrue(name, FileUtils.contentEquals(new File(input, name), new File(destination, name)));
+        }
+        System.out.println("Create testTarFileParallel.tar.gz done");
+    }
+}
@@ -1,9 +1,34 @@
 package util.tar;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
-import java.io.File;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import tar.TarCreator;
 import org.junit.Test;
 
@@ -22,4 +47,486 @@ public class TarCreatorTest extends AbstractJunitTest {
         assertTrue(destination.length() > 0);
         System.out.println("Create testTarFile.tar done");
     }
+
+    @Test
+    public void testInflateWithReadThreads() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File serial = new File(WORK_HOME, "testTarFileSerial.tar");
+        new TarCreator(serial).inflate(resource);
+
+        File pipelined = new File(WORK_HOME, "testTarFilePipelined.tar");
+        TarCreator creator = new TarCreator(pipelined);
+        creator.setReadThreads(4);
+        // Small budget so the videos are streamed by the writer and only the small files are prefetched
+        creator.setPrefetchMemory(256 * 1024);
+        creator.inflate(resource);
+
+        assertEquals(serial.length(), pipelined.length());
+        assertSameEntries(serial, pipelined);
+        System.out.println("Create testTarFilePipelined.tar done");
+    }
+
+    @Test
+    public void testInflateZeroCopy() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File serial = new File(WORK_HOME, "testTarFileSerial.tar");
+        new TarCreator(serial).inflate(resource);
+
+        File zeroCopy = new File(WORK_HOME, "testTarFileZeroCopy.tar");
+        TarCreator creator = new TarCreator(zeroCopy);
+        creator.setZeroCopy(true);
+        creator.inflate(resource);
+
+        assertEquals(serial.length(), zeroCopy.length());
+        assertSameEntries(serial, zeroCopy);
+        System.out.println("Create testTarFileZeroCopy.tar done");
+    }
+
+    @Test
+    public void testWriteToStream() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File serial = new File(WORK_HOME, "testTarFileSerial.tar");
+        new TarCreator(serial).inflate(resource);
+
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream target = new ByteArrayOutputStream() {
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        File streamed = new File(WORK_HOME, "testTarFileStreamed.tar");
+        streamed.delete();
+        TarCreator creator = new TarCreator(streamed);
+        creator.setReadThreads(4);
+        creator.write(target, resource);
+        assertFalse(closed[0]);
+        assertFalse(streamed.exists());
+        FileUtils.writeByteArrayToFile(streamed, target.toByteArray());
+        assertEquals(serial.length(), streamed.length());
+        assertSameEntries(serial, streamed);
+
+        // Zero-copy transfers the file content straight into the channel
+        target.reset();
+        WritableByteChannel channel = Channels.newChannel(target);
+        creator.setZeroCopy(true);
+        creator.write(channel, resource);
+        assertTrue(channel.isOpen());
+        FileUtils.writeByteArrayToFile(streamed, target.toByteArray());
+        assertSameEntries(serial, streamed);
+
+        // The channel of the caller is written as is and left open
+        streamed.delete();
+        FileChannel fileChannel = FileChannel.open(streamed.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        try {
+            creator.write(fileChannel, resource);
+            assertTrue(fileChannel.isOpen());
+            assertEquals(serial.length(), fileChannel.position());
+        } finally {
+            fileChannel.close();
+        }
+        assertSameEntries(serial, streamed);
+
+        target.reset();
+        creator.setCompression(Compression.GZIP);
+        creator.write(target, resource);
+        FileUtils.writeByteArrayToFile(streamed, IOUtils.toByteArray(Compression.GZIP.decompress(
+                new ByteArrayInputStream(target.toByteArray()))));
+        assertSameEntries(serial, streamed);
+        System.out.println("Create testTarFileStreamed.tar done");
+    }
+
+    @Test
+    public void testWriteGeneratedEntries() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        byte[] header = "generated header".getBytes("UTF-8");
+        byte[] report = new byte[100 * 1024];
+        for (int i = 0; i < report.length; i++) {
+            report[i] = (byte) i;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(report.length);
+        buffer.put(report).flip();
+
+        File archive = new File(WORK_HOME, "testTarFileGenerated.tar");
+        TarCreator creator = new TarCreator(archive);
+        creator.setReadThreads(4);
+        creator.setWriteIndex(true);
+        IArchiveWriter writer = creator.openWriter();
+        try {
+            writer.newEntry("header.txt").mode(0600).lastModified(1000000000000L).write(header);
+            writer.add(new File(resource, "testFile.txt"), new File(resource, "Catalog"));
+            writer.newEntry("report.bin").write(buffer);
+            writer.newEntry("Catalog/copy.bin").write(new ByteArrayInputStream(report), 1000);
+        } finally {
+            writer.close();
+        }
+        assertEquals(0, buffer.position());
+
+        List<String> names = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        readEntries(archive, names, contents);
+        assertEquals("header.txt", names.get(0));
+        assertArrayEquals(header, contents.get(0));
+        assertEquals("testFile.txt", names.get(1));
+        assertEquals("report.bin", names.get(names.size() - 2));
+        assertArrayEquals(report, contents.get(names.size() - 2));
+        assertArrayEquals(Arrays.copyOf(report, 1000), contents.get(names.size() - 1));
+
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(archive));
+        try {
+            TarArchiveEntry entry = in.getNextTarEntry();
+            assertEquals(0600, entry.getMode() & 07777);
+            assertTrue(entry.isFile());
+            assertEquals(1000000000000L, entry.getModTime().getTime());
+        } finally {
+            in.close();
+        }
+
+        tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+        extractor.setUseIndex(true);
+        InputStream entryInputStream = extractor.openEntryStream("report.bin");
+        try {
+            assertArrayEquals(report, IOUtils.toByteArray(entryInputStream));
+        } finally {
+            entryInputStream.close();
+        }
+        System.out.println("Create testTarFileGenerated.tar done");
+    }
+
+    @Test
+    public void testWriteUnknownLengthEntries() throws Exception {
+        byte[] large = new byte[100 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 31);
+        }
+        byte[] small = Arrays.copyOf(large, 100);
+        File spillDirectory = new File(WORK_HOME, "Spill");
+        FileUtils.deleteDirectory(spillDirectory);
+        spillDirectory.mkdirs();
+
+        File archive = new File(WORK_HOME, "testTarFileUnknownLength.tar");
+        TarCreator creator = new TarCreator(archive);
+        creator.setSpillThreshold(4096);
+        creator.setSpillDirectory(spillDirectory);
+        // The spilled entry is transferred from its file channel
+        creator.setZeroCopy(true);
+        IArchiveWriter writer = creator.openWriter();
+        try {
+            writer.newEntry("small.bin").write(new ByteArrayInputStream(small));
+            writer.newEntry("large.bin").write(new ByteArrayInputStream(large));
+            writer.newEntry("empty.bin").write(new ByteArrayInputStream(new byte[0]));
+            writer.newEntry("small2.bin").write(new ByteArrayInputStream(small));
+        } finally {
+            writer.close();
+        }
+        assertEquals(0, spillDirectory.list().length);
+
+        List<String> names = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        readEntries(archive, names, contents);
+        assertEquals(Arrays.asList("small.bin", "large.bin", "empty.bin", "small2.bin"), names);
+        assertArrayEquals(small, contents.get(0));
+        assertArrayEquals(large, contents.get(1));
+        assertEquals(0, contents.get(2).length);
+        assertArrayEquals(small, contents.get(3));
+        System.out.println("Create testTarFileUnknownLength.tar done");
+    }
+
+    @Test
+    public void testInflateWithWalkThreads() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File serial = new File(WORK_HOME, "testTarFileSerial.tar");
+        new TarCreator(serial).inflate(resource);
+
+        File walked = new File(WORK_HOME, "testTarFileWalked.tar");
+        TarCreator creator = new TarCreator(walked);
+        creator.setWalkThreads(4);
+        creator.inflate(resource);
+
+        assertEquals(serial.length(), walked.length());
+        assertSameEntries(serial, walked);
+
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(walked));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                // Tar stores seconds
+                assertEquals(entry.getName(), new File(resource, entry.getName()).lastModified() / 1000,
+                        entry.getModTime().getTime() / 1000);
+            }
+        } finally {
+            in.close();
+        }
+        System.out.println("Create testTarFileWalked.tar done");
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File appended = new File(WORK_HOME, "appended.txt");
+        FileUtils.writeStringToFile(appended, "appended content", "UTF-8");
+
+        for (boolean writeIndex : new boolean[] { false, true }) {
+            File archive = new File(WORK_HOME, "testTarFileAppend" + writeIndex + ".tar");
+            archive.delete();
+            TarCreator creator = new TarCreator(archive);
+            creator.setWriteIndex(writeIndex);
+            // Appending to a missing archive creates it
+            creator.append(new File(resource, "Catalog"));
+            creator.append(new File(resource, "testFile.txt"), appended);
+
+            List<String> names = new ArrayList<String>();
+            List<byte[]> contents = new ArrayList<byte[]>();
+            readEntries(archive, names, contents);
+            assertEquals(Arrays.asList("testFileCatalog.txt", "testFile.txt", "appended.txt"), names);
+            assertEquals("appended content", new String(contents.get(2), "UTF-8"));
+            assertEquals(0, archive.length() % 512);
+
+            tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+            extractor.setUseIndex(writeIndex);
+            assertTrue(IOUtils.contentEquals(new FileInputStream(new File(resource, "testFile.txt")),
+                    extractor.deflate("testFile.txt")));
+            assertEquals("appended content", IOUtils.toString(extractor.deflate("appended.txt"), "UTF-8"));
+        }
+
+        // Archives written by the stream based creator end with a padded block
+        File archive = new File(WORK_HOME, "testTarFileAppendStream.tar");
+        new TarCreator(archive).inflate(resource);
+        File serial = new File(WORK_HOME, "testTarFileAppendSerial.tar");
+        FileUtils.copyFile(archive, serial);
+        new TarCreator(archive).append(appended);
+
+        List<String> names = new ArrayList<String>();
+        readEntries(archive, names, new ArrayList<byte[]>());
+        List<String> serialNames = new ArrayList<String>();
+        readEntries(serial, serialNames, new ArrayList<byte[]>());
+        serialNames.add("appended.txt");
+        assertEquals(serialNames, names);
+
+        // The manifest describes the archive with the appended files
+        File manifested = new File(WORK_HOME, "testTarFileAppendManifest.tar");
+        TarCreator creator = new TarCreator(manifested);
+        creator.setWriteManifest(true);
+        creator.inflate(new File(resource, "Catalog"));
+        new TarCreator(manifested).append(appended);
+        ArchiveManifest manifest = ArchiveManifest.load(manifested);
+        assertTrue(manifest.get("testFileCatalog.txt") != null);
+        assertEquals(appended.length(), manifest.get("appended.txt").getSize());
+
+        // A failed append leaves the archive and its sidecars as they were
+        File indexed = new File(WORK_HOME, "testTarFileAppendFailed.tar");
+        TarCreator failing = new TarCreator(indexed);
+        failing.setWriteIndex(true);
+        failing.inflate(new File(resource, "Catalog"));
+        File before = new File(WORK_HOME, "testTarFileAppendFailedCopy.tar");
+        FileUtils.copyFile(indexed, before);
+        byte[] indexBefore = FileUtils.readFileToByteArray(ArchiveIndex.getIndexFile(indexed));
+        File tooLong = new File(WORK_HOME, StringUtils.repeat("x", 120) + ".txt");
+        FileUtils.writeStringToFile(tooLong, "name too long for a tar header", "UTF-8");
+        try {
+            failing.append(appended, tooLong);
+            fail();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        assertTrue(FileUtils.contentEquals(before, indexed));
+        assertArrayEquals(indexBefore, FileUtils.readFileToByteArray(ArchiveIndex.getIndexFile(indexed)));
+
+        // Compressed archives cannot be appended to
+        File compressed = new File(WORK_HOME, "testTarFileAppend.tar.gz");
+        TarCreator gzip = new TarCreator(compressed);
+        gzip.setCompression(Compression.GZIP);
+        gzip.inflate(new File(resource, "Catalog"));
+        for (TarCreator compressedCreator : new TarCreator[] { gzip, new TarCreator(compressed) }) {
+            try {
+                compressedCreator.append(appended);
+                fail();
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        System.out.println("Append to tar done");
+    }
+
+    @Test
+    public void testInflateDeduplicated() throws Exception {
+        File resource = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File source = new File(WORK_HOME, "DedupSource");
+        FileUtils.deleteDirectory(source);
+        FileUtils.copyFile(new File(resource, "Photo.jpg"), new File(source, "First/Photo.jpg"));
+        FileUtils.copyFile(new File(resource, "Photo.jpg"), new File(source, "Second/Photo copy.jpg"));
+        FileUtils.writeStringToFile(new File(source, "same size 1.txt"), "aaaa", "UTF-8");
+        FileUtils.writeStringToFile(new File(source, "same size 2.txt"), "bbbb", "UTF-8");
+
+        File plain = new File(WORK_HOME, "testTarFileNotDeduplicated.tar");
+        new TarCreator(plain).inflate(source);
+        File deduplicated = new File(WORK_HOME, "testTarFileDeduplicated.tar");
+        TarCreator creator = new TarCreator(deduplicated);
+        creator.setDeduplicate(true);
+        creator.inflate(source);
+        assertTrue(deduplicated.length() < plain.length());
+
+        int links = 0;
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(deduplicated));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                if (entry.isLink()) {
+                    links++;
+                    assertTrue(entry.getName().endsWith("Photo.jpg") || entry.getName().endsWith("Photo copy.jpg"));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(1, links);
+
+        for (int writeThreads : new int[] { 1, 4 }) {
+            File destination = new File(WORK_HOME, "Deduplicated" + writeThreads);
+            FileUtils.deleteDirectory(destination);
+            destination.mkdirs();
+            tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(deduplicated));
+            extractor.setWriteThreads(writeThreads);
+            extractor.deflate(destination);
+            for (String name : new String[] { "First/Photo.jpg", "Second/Photo copy.jpg", "same size 1.txt",
+                    "same size 2.txt" }) {
+                assertTrue(name, FileUtils.contentEquals(new File(source, name), new File(destination, name)));
+            }
+        }
+        System.out.println("Create testTarFileDeduplicated.tar done");
+    }
+
+    @Test
+    public void testInflatePreservingLinks() throws Exception {
+        File source = new File(WORK_HOME, "LinkSource");
+        FileUtils.deleteDirectory(source);
+        File catalog = new File(source, "Catalog");
+        catalog.mkdirs();
+        File file = new File(source, "file.txt");
+        FileUtils.writeStringToFile(file, "linked content", "UTF-8");
+        Files.createLink(new File(catalog, "hard.txt").toPath(), file.toPath());
+        Files.createSymbolicLink(new File(source, "symbolic.txt").toPath(), Paths.get("file.txt"));
+        Files.createSymbolicLink(new File(catalog, "Loop").toPath(), Paths.get(".."));
+
+        try {
+            new TarCreator(new File(WORK_HOME, "testTarFileLoop.tar")).inflate(source);
+            fail("Loop followed");
+        } catch (FileSystemLoopException e) {
+            // Expected
+        }
+
+        File archive = new File(WORK_HOME, "testTarFileLinks.tar");
+        TarCreator creator = new TarCreator(archive);
+        creator.setPreserveLinks(true);
+        creator.inflate(source);
+
+        Map<String, TarArchiveEntry> entries = new HashMap<String, TarArchiveEntry>();
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(archive));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                entries.put(entry.getName(), entry);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(5, entries.size());
+        TarArchiveEntry hard = entries.containsKey("file.txt") && entries.get("file.txt").isLink()
+                ? entries.get("file.txt") : entries.get("Catalog/hard.txt");
+        assertTrue(hard.isLink());
+        assertTrue(entries.get("symbolic.txt").isSymbolicLink());
+        assertEquals("file.txt", entries.get("symbolic.txt").getLinkName());
+        assertEquals("..", entries.get("Catalog/Loop").getLinkName());
+
+        File destination = new File(WORK_HOME, "Links");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+        new tar.TarExtractor(new FileSystemResource(archive)).deflate(destination);
+        assertEquals("linked content", FileUtils.readFileToString(new File(destination, "Catalog/hard.txt"), "UTF-8"));
+        assertTrue(Files.isSymbolicLink(new File(destination, "symbolic.txt").toPath()));
+        assertEquals("linked content", FileUtils.readFileToString(new File(destination, "symbolic.txt"), "UTF-8"));
+        assertTrue(Files.isSymbolicLink(new File(destination, "Catalog/Loop").toPath()));
+        System.out.println("Create testTarFileLinks.tar done");
+    }
+
+    @Test
+    public void testInflateSparse() throws Exception {
+        File source = new File(WORK_HOME, "SparseSource");
+        FileUtils.deleteDirectory(source);
+        source.mkdirs();
+        // Enough data segments to need extension headers, and a trailing hole
+        File file = new File(source, "sparse.bin");
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 7);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < 30; i++) {
+                randomAccessFile.seek(i * 16 * 1024L);
+                randomAccessFile.write(data);
+            }
+            randomAccessFile.setLength(31 * 16 * 1024L);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        // Dense files are only probed, not scanned
+        File dense = new File(WORK_HOME, "dense.bin");
+        byte[] denseData = new byte[256 * 1024];
+        Arrays.fill(denseData, (byte) 1);
+        FileUtils.writeByteArrayToFile(dense, denseData);
+        assertFalse(SparseFileMap.mayHaveHoles(dense));
+        assertTrue(SparseFileMap.mayHaveHoles(file));
+
+        File archive = new File(WORK_HOME, "testTarFileSparse.tar");
+        TarCreator creator = new TarCreator(archive);
+        creator.setSparse(true);
+        creator.inflate(source);
+        assertTrue(archive.length() < file.length());
+
+        File compressed = new File(WORK_HOME, "testTarFileSparse.tar.gz");
+        creator = new TarCreator(compressed);
+        creator.setSparse(true);
+        creator.setCompression(Compression.GZIP);
+        creator.inflate(source);
+
+        // Scanned from the file, and read from streams: the compressed archive and a resource that is not a file
+        Resource[] resources = new Resource[] { new FileSystemResource(archive), new FileSystemResource(compressed),
+                new InputStreamResource(new FileInputStream(archive)) };
+        for (int i = 0; i < resources.length; i++) {
+            File destination = new File(WORK_HOME, "Sparse" + i);
+            FileUtils.deleteDirectory(destination);
+            destination.mkdirs();
+            new tar.TarExtractor(resources[i]).deflate(destination);
+            File extracted = new File(destination, "sparse.bin");
+            assertEquals(file.length(), extracted.length());
+            assertArrayEquals(FileUtils.readFileToByteArray(file), FileUtils.readFileToByteArray(extracted));
+        }
+        System.out.println("Create testTarFileSparse.tar done");
+    }
+
+    protected static void assertSameEntries(File expected, File actual) throws IOException {
+        List<String> expectedNames = new ArrayList<String>();
+        List<byte[]> expectedContents = new ArrayList<byte[]>();
+        readEntries(expected, expectedNames, expectedContents);
+
+        List<String> actualNames = new ArrayList<String>();
+        List<byte[]> actualContents = new ArrayList<byte[]>();
+        readEntries(actual, actualNames, actualContents);
+
+        assertEquals(expectedNames, actualNames);
+        for (int i = 0; i < expectedContents.size(); i++) {
+            assertArrayEquals(expectedNames.get(i), expectedContents.get(i), actualContents.get(i));
+        }
+    }
+
+    private static void readEntries(File archive, List<String> names, List<byte[]> contents) throws IOException {
+        TarArchiveInputStream in = new TarArchiveInputStream(new FileInputStream(archive));
+        try {
+            for (TarArchiveEntry entry = in.getNextTarEntry(); entry != null; entry = in.getNextTarEntry()) {
+                names.add(entry.getName());
+                contents.add(IOUtils.toByteArray(in));
+            }
+        } finally {
+            in.close();
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package util.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.springframework.core.io.FileSystemResource;
+import tar.TarEntryScanner;
+import tar.TarExtractor;
+
+/**
+ * Test for the positional tar header scanner and the seekable extraction.
+ */
+public class TarEntryScannerTest extends AbstractJunitTest {
+
+    private static final String LONG_NAME = "Catalog/" + StringUtils.repeat("long", 40) + ".txt";
+
+    private static final String PAX_NAME = "Catalog/" + StringUtils.repeat("pax", 50) + ".txt";
+
+    @Test
+    public void testScanLongNames() throws Exception {
+        File archive = createArchive();
+
+        FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        try {
+            TarEntryScanner scanner = new TarEntryScanner(channel);
+            assertEntry(scanner, scanner.getNextEntry(), "short.txt", "short");
+            assertEntry(scanner, scanner.getNextEntry(), LONG_NAME, "gnu long name");
+            assertEntry(scanner, scanner.getNextEntry(), PAX_NAME, "pax long name");
+            assertNull(scanner.getNextEntry());
+        } finally {
+            channel.close();
+        }
+        System.out.println("Scan long names done");
+    }
+
+    @Test
+    public void testDeflateFiltered() throws Exception {
+        File archive = createArchive();
+        File destination = new File(WORK_HOME, "Filtered");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+
+        new TarExtractor(new FileSystemResource(archive)).deflate(destination, "pax*.txt");
+
+        assertFalse(new File(destination, "short.txt").exists());
+        assertFalse(new File(destination, LONG_NAME).exists());
+        assertEquals("pax long name", FileUtils.readFileToString(new File(destination, PAX_NAME), "UTF-8"));
+        System.out.println("Filtered extraction done");
+    }
+
+    private static void assertEntry(TarEntryScanner scanner, TarArchiveEntry entry, String name, String content)
+            throws IOException {
+        assertEquals(name, entry.getName());
+        assertEquals(content.length(), scanner.getDataSize());
+        assertTrue(scanner.getDataOffset() % 512 == 0);
+    }
+
+    private static File createArchive() throws IOException {
+        File archive = new File(WORK_HOME, "testTarFileLongNames.tar");
+        TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(archive));
+        try {
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+            addEntry(out, "short.txt", "short");
+            addEntry(out, LONG_NAME, "gnu long name");
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            addEntry(out, PAX_NAME, "pax long name");
+        } finally {
+            out.close();
+        }
+        return archive;
+    }
+
+    private static void addEntry(TarArchiveOutputStream out, String name, String content) throws IOException {
+        byte[] data = content.getBytes("UTF-8");
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        out.putArchiveEntry(entry);
+        out.write(data);
+        out.closeArchiveEntry();
+    }
+}
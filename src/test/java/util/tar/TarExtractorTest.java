@@ -1,12 +1,28 @@
 package util.tar;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 
 /**
@@ -49,4 +65,479 @@ public class TarExtractorTest extends AbstractJunitTest {
         new File(destination, "Catalog/testFileCatalog.txt").createNewFile();
         System.out.println("Extract files done");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDeflateContent() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileContent.tar");
+        new tar.TarCreator(archive).inflate(input);
+
+        File destination = new File(WORK_HOME, "Content");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+        new tar.TarExtractor(resourceLoader.getResource("file:" + archive.getPath())).deflate(destination);
+
+        for (String name : new String[] { "testFile.txt", "Photo.jpg", "In_sea.webm", "AV_Defender.mp4",
+                "Catalog/testFileCatalog.txt" }) {
+            assertTrue(name, FileUtils.contentEquals(new File(input, name), new File(destination, name)));
+        }
+        System.out.println("Extract content done");
+    }
+
+    @Test
+    public void testIndexedLookup() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileIndexed.tar");
+        tar.TarCreator creator = new tar.TarCreator(archive);
+        creator.setWriteIndex(true);
+        creator.inflate(input);
+        File indexFile = ArchiveIndex.getIndexFile(archive);
+        assertTrue(indexFile.exists());
+
+        for (boolean rebuild : new boolean[] { false, true }) {
+            if (rebuild) {
+                assertTrue(indexFile.delete());
+            }
+            tar.TarExtractor extractor = new tar.TarExtractor(resourceLoader.getResource("file:" + archive.getPath()));
+            extractor.setUseIndex(true);
+
+            assertTrue(extractor.entryExist("Photo.jpg"));
+            assertTrue(extractor.entryExist("*.mp4"));
+            assertFalse(extractor.entryExist("missing.txt"));
+            assertTrue(IOUtils.contentEquals(new FileInputStream(new File(input, "Catalog/testFileCatalog.txt")),
+                    extractor.deflate("testFileCatalog.txt")));
+            assertTrue(IOUtils.contentEquals(new FileInputStream(new File(input, "In_sea.webm")),
+                    extractor.deflate("In_s?a.webm")));
+            assertNull(extractor.deflate("missing.txt"));
+            assertTrue(indexFile.exists());
+        }
+        System.out.println("Indexed lookup done");
+    }
+
+    @Test
+    public void testDeflateParallel() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileParallel.tar");
+        new tar.TarCreator(archive).inflate(input);
+
+        Resource[] resources = { new FileSystemResource(archive),
+                new InputStreamResource(new FileInputStream(archive)) };
+        for (int i = 0; i < resources.length; i++) {
+            File destination = new File(WORK_HOME, "Parallel" + i);
+            FileUtils.deleteDirectory(destination);
+            destination.mkdirs();
+
+            tar.TarExtractor extractor = new tar.TarExtractor(resources[i]);
+            extractor.setWriteThreads(4);
+            extractor.setWriteMemory(64 * 1024);
+            extractor.deflate(destination);
+
+            for (String name : new String[] { "testFile.txt", "Photo.jpg", "In_sea.webm", "AV_Defender.mp4",
+                    "Catalog/testFileCatalog.txt" }) {
+                assertTrue(name, FileUtils.contentEquals(new File(input, name), new File(destination, name)));
+            }
+        }
+        System.out.println("Parallel extraction done");
+    }
+
+    @Test
+    public void testDeflateParallelManySmallEntries() throws Exception {
+        File archive = new File(WORK_HOME, "testTarFileSmallEntries.tar");
+        IArchiveWriter writer = new tar.TarCreator(archive).openWriter();
+        try {
+            for (int i = 0; i < 3000; i++) {
+                writer.newEntry("Small" + i % 50 + "/Nested/file" + i + ".txt").write(("file " + i).getBytes("UTF-8"));
+            }
+        } finally {
+            writer.close();
+        }
+
+        Resource[] resources = { new FileSystemResource(archive),
+                new InputStreamResource(new FileInputStream(archive)) };
+        for (int i = 0; i < resources.length; i++) {
+            File destination = new File(WORK_HOME, "ParallelSmall" + i);
+            FileUtils.deleteDirectory(destination);
+            destination.mkdirs();
+
+            tar.TarExtractor extractor = new tar.TarExtractor(resources[i]);
+            extractor.setWriteThreads(4);
+            extractor.deflate(destination);
+
+            for (int j = 0; j < 3000; j++) {
+                assertEquals("file " + j, FileUtils.readFileToString(
+                        new File(destination, "Small" + j % 50 + "/Nested/file" + j + ".txt"), "UTF-8"));
+            }
+        }
+        System.out.println("Parallel extraction of small entries done");
+    }
+
+    @Test
+    public void testOpenEntryStream() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileStream.tar");
+        new tar.TarCreator(archive).inflate(input);
+
+        Resource[] resources = { new FileSystemResource(archive),
+                new InputStreamResource(new FileInputStream(archive)) };
+        for (Resource resource : resources) {
+            tar.TarExtractor extractor = new tar.TarExtractor(resource);
+            InputStream entryInputStream = extractor.openEntryStream("AV_Defender.mp4");
+            try {
+                assertTrue(IOUtils.contentEquals(new FileInputStream(new File(input, "AV_Defender.mp4")),
+                        entryInputStream));
+            } finally {
+                entryInputStream.close();
+            }
+        }
+
+        tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+        assertNull(extractor.openEntryStream("missing.txt"));
+        ChannelSliceInputStream sliceInputStream = (ChannelSliceInputStream) extractor.openEntryStream("*.txt");
+        assertTrue(sliceInputStream.isOpen());
+        sliceInputStream.close();
+        assertFalse(sliceInputStream.isOpen());
+        System.out.println("Entry stream done");
+    }
+
+    @Test
+    public void testRestoreIncrementalChain() throws Exception {
+        File source = new File(WORK_HOME, "IncrementalSource");
+        FileUtils.deleteDirectory(source);
+        FileUtils.copyDirectory(ResourceUtils.getFile("classpath:tar/testData/Input/"), source);
+
+        File full = new File(WORK_HOME, "testTarFileFull.tar");
+        tar.TarCreator creator = new tar.TarCreator(full);
+        creator.setWriteManifest(true);
+        creator.setManifestDigest("SHA-256");
+        creator.inflate(source);
+
+        FileUtils.writeStringToFile(new File(source, "Catalog/added.txt"), "added", "UTF-8");
+        FileUtils.writeStringToFile(new File(source, "testFile.txt"), "changed", "UTF-8");
+        assertTrue(new File(source, "Photo.jpg").delete());
+        // Same content, only archived again without digests
+        File touched = new File(source, "In_sea.webm");
+        assertTrue(touched.setLastModified(touched.lastModified() - 60000));
+
+        File increment = new File(WORK_HOME, "testTarFileIncrement.tar");
+        creator = new tar.TarCreator(increment);
+        creator.setIncrementalBase(full);
+        creator.setManifestDigest("SHA-256");
+        creator.inflate(source);
+
+        ArchiveManifest manifest = ArchiveManifest.load(increment);
+        assertEquals(full.getName(), manifest.getBaseName());
+        assertEquals(Arrays.asList("Photo.jpg"), manifest.getDeleted());
+        tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(increment));
+        assertTrue(extractor.entryExist("added.txt"));
+        assertTrue(extractor.entryExist("testFile.txt"));
+        assertFalse(extractor.entryExist("In_sea.webm"));
+        assertFalse(extractor.entryExist("AV_Defender.mp4"));
+
+        File destination = new File(WORK_HOME, "Restored");
+        FileUtils.deleteDirectory(destination);
+        destination.mkdirs();
+        tar.TarExtractor.restoreChain(destination, full, increment);
+
+        assertFalse(new File(destination, "Photo.jpg").exists());
+        for (String name : new String[] { "testFile.txt", "In_sea.webm", "In_ad.webm", "AV_Defender.mp4",
+                "Catalog/testFileCatalog.txt", "Catalog/added.txt" }) {
+            assertTrue(name, FileUtils.contentEquals(new File(source, name), new File(destination, name)));
+        }
+
+        try {
+            tar.TarExtractor.restoreChain(destination, increment, full);
+            fail("Chain out of order");
+        } catch (IOException e) {
+            // Expected
+        }
+        System.out.println("Incremental restore done");
+    }
+
+    @Test
+    public void testDeflateCompressed() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        for (Compression compression : new Compression[] { Compression.GZIP, Compression.BZIP2, Compression.XZ }) {
+            File archive = new File(WORK_HOME, "testTarFile.tar." + compression.name().toLowerCase());
+            tar.TarCreator creator = new tar.TarCreator(archive);
+            creator.setCompression(compression);
+            creator.setWriteIndex(true);
+            // The channel stream also writes into the compression thread
+            creator.setZeroCopy(compression == Compression.GZIP);
+            creator.inflate(input);
+            assertEquals(compression, Compression.detect(archive));
+            assertFalse(ArchiveIndex.getIndexFile(archive).exists());
+
+            File destination = new File(WORK_HOME, "Compressed" + compression);
+            FileUtils.deleteDirectory(destination);
+            destination.mkdirs();
+            tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+            extractor.setUseIndex(true);
+            extractor.deflate(destination);
+            for (String name : new String[] { "testFile.txt", "In_sea.webm", "In_ad.webm", "AV_Defender.mp4",
+                    "Photo.jpg", "Catalog/testFileCatalog.txt" }) {
+                assertTrue(name, FileUtils.contentEquals(new File(input, name), new File(destination, name)));
+            }
+
+            InputStream entryInputStream = extractor.openEntryStream("Photo.jpg");
+            try {
+                assertTrue(IOUtils.contentEquals(new FileInputStream(new File(input, "Photo.jpg")),
+                        entryInputStream));
+            } finally {
+                entryInputStream.close();
+            }
+            assertFalse(ArchiveIndex.getIndexFile(archive).exists());
+        }
+        System.out.println("Compressed deflate done");
+    }
+
+    @Test
+    public void testOpenDeduplicatedEntry() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File source = new File(WORK_HOME, "DedupLookupSource");
+        FileUtils.deleteDirectory(source);
+        FileUtils.copyFile(new File(input, "testFile.txt"), new File(source, "a.txt"));
+        FileUtils.copyFile(new File(input, "testFile.txt"), new File(source, "b.txt"));
+        FileUtils.copyFile(new File(input, "testFile.txt"), new File(source, "c.txt"));
+        String content = FileUtils.readFileToString(new File(input, "testFile.txt"), "UTF-8");
+
+        for (Compression compression : new Compression[] { Compression.NONE, Compression.GZIP }) {
+            for (boolean writeIndex : new boolean[] { false, true }) {
+                File archive = new File(WORK_HOME, "testTarFileDedupLookup" + writeIndex + "."
+                        + compression.name().toLowerCase());
+                ArchiveIndex.getIndexFile(archive).delete();
+                tar.TarCreator creator = new tar.TarCreator(archive);
+                creator.setDeduplicate(true);
+                creator.setCompression(compression);
+                creator.setIndependentBlocks(true);
+                creator.setWriteIndex(writeIndex);
+                creator.inflate(source);
+
+                // Scanned, indexed by the creator or by the extractor, and read from the gzip stream
+                for (boolean useIndex : new boolean[] { false, true }) {
+                    tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+                    extractor.setUseIndex(useIndex);
+                    for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+                        String message = compression + " " + writeIndex + " " + useIndex + " " + name;
+                        assertEquals(message, content, IOUtils.toString(extractor.deflate(name), "UTF-8"));
+                        InputStream entryInputStream = extractor.openEntryStream(name);
+                        try {
+                            assertEquals(message, content, IOUtils.toString(entryInputStream, "UTF-8"));
+                        } finally {
+                            entryInputStream.close();
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Deduplicated entry lookup done");
+    }
+
+    @Test
+    public void testDeflateDeduplicatedSelection() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File source = new File(WORK_HOME, "DedupSelectionSource");
+        FileUtils.deleteDirectory(source);
+        FileUtils.copyFile(new File(input, "Photo.jpg"), new File(source, "First/first.jpg"));
+        FileUtils.copyFile(new File(input, "Photo.jpg"), new File(source, "Second/second.jpg"));
+        FileUtils.copyFile(new File(input, "Photo.jpg"), new File(source, "Third/third.jpg"));
+        File photo = new File(input, "Photo.jpg");
+
+        for (Compression compression : new Compression[] { Compression.NONE, Compression.GZIP }) {
+            File archive = new File(WORK_HOME, "testTarFileDedupSelection." + compression.name().toLowerCase());
+            tar.TarCreator creator = new tar.TarCreator(archive);
+            creator.setDeduplicate(true);
+            creator.setCompression(compression);
+            creator.inflate(source);
+
+            // Seekable or read as a stream, serially or by writer threads
+            String[] names = { "First/first.jpg", "Second/second.jpg", "Third/third.jpg" };
+            for (int writeThreads : new int[] { 1, 4 }) {
+                tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+                extractor.setWriteThreads(writeThreads);
+
+                // Each file alone, two of them being links to a target that is not extracted
+                for (String name : names) {
+                    File destination = new File(WORK_HOME, "DedupSelection" + compression + writeThreads);
+                    FileUtils.deleteDirectory(destination);
+                    destination.mkdirs();
+                    extractor.deflate(destination, new File(name).getName());
+                    for (String other : names) {
+                        assertEquals(other, other.equals(name), new File(destination, other).exists());
+                    }
+                    assertTrue(name, FileUtils.contentEquals(photo, new File(destination, name)));
+                }
+
+                File destination = new File(WORK_HOME, "DedupSelectionFlat" + compression + writeThreads);
+                FileUtils.deleteDirectory(destination);
+                destination.mkdirs();
+                extractor.deflate(destination, "*.jpg", true);
+                for (String name : names) {
+                    assertTrue(name, FileUtils.contentEquals(photo, new File(destination, new File(name).getName())));
+                }
+            }
+
+            // A stream read once cannot give the skipped content of the link targets back
+            int failures = 0;
+            for (String name : names) {
+                File destination = new File(WORK_HOME, "DedupSelectionStream" + compression);
+                FileUtils.deleteDirectory(destination);
+                destination.mkdirs();
+                tar.TarExtractor extractor = new tar.TarExtractor(new InputStreamResource(new FileInputStream(
+                        archive)));
+                try {
+                    extractor.deflate(destination, new File(name).getName());
+                    assertTrue(name, FileUtils.contentEquals(photo, new File(destination, name)));
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+            assertEquals(2, failures);
+        }
+        System.out.println("Deduplicated selection done");
+    }
+
+    @Test
+    public void testSymbolicLinksStayInDestination() throws Exception {
+        File archive = new File(WORK_HOME, "testTarFileLinkChain.tar");
+        TarArchiveOutputStream out = new TarArchiveOutputStream(new FileOutputStream(archive));
+        try {
+            out.putArchiveEntry(new TarArchiveEntry("a/"));
+            out.closeArchiveEntry();
+            TarArchiveEntry up = new TarArchiveEntry("a/s", TarConstants.LF_SYMLINK);
+            up.setLinkName("..");
+            out.putArchiveEntry(up);
+            out.closeArchiveEntry();
+            // Lexically in the destination, but its parent once a/s is followed
+            TarArchiveEntry chained = new TarArchiveEntry("b", TarConstants.LF_SYMLINK);
+            chained.setLinkName("a/s/..");
+            out.putArchiveEntry(chained);
+            out.closeArchiveEntry();
+            TarArchiveEntry evil = new TarArchiveEntry("b/evil.txt");
+            evil.setSize(4);
+            out.putArchiveEntry(evil);
+            out.write("evil".getBytes("UTF-8"));
+            out.closeArchiveEntry();
+        } finally {
+            out.close();
+        }
+
+        File parent = new File(WORK_HOME, "LinkChain");
+        FileUtils.deleteDirectory(parent);
+        File destination = new File(parent, "destination");
+        destination.mkdirs();
+        new tar.TarExtractor(new FileSystemResource(archive)).deflate(destination);
+        assertTrue(Files.isSymbolicLink(new File(destination, "a/s").toPath()));
+        assertFalse(Files.isSymbolicLink(new File(destination, "b").toPath()));
+        assertTrue(new File(destination, "b/evil.txt").isFile());
+        assertFalse(new File(parent, "evil.txt").exists());
+
+        // An entry below an extracted link is refused
+        File through = new File(WORK_HOME, "testTarFileThroughLink.tar");
+        out = new TarArchiveOutputStream(new FileOutputStream(through));
+        try {
+            TarArchiveEntry link = new TarArchiveEntry("c", TarConstants.LF_SYMLINK);
+            link.setLinkName("a");
+            out.putArchiveEntry(link);
+            out.closeArchiveEntry();
+            TarArchiveEntry below = new TarArchiveEntry("c/below.txt");
+            out.putArchiveEntry(below);
+            out.closeArchiveEntry();
+        } finally {
+            out.close();
+        }
+        try {
+            new tar.TarExtractor(new FileSystemResource(through)).deflate(destination);
+            fail("Entry written through a symbolic link");
+        } catch (IOException e) {
+            assertFalse(new File(destination, "a/below.txt").exists());
+        }
+        System.out.println("Symbolic link chain done");
+    }
+
+    @Test
+    public void testDetectPlainTarNamedLikeBzip2() throws Exception {
+        File source = new File(WORK_HOME, "BZh91AY&SY.txt");
+        FileUtils.writeStringToFile(source, "not compressed", "UTF-8");
+        File archive = new File(WORK_HOME, "testTarFileBzipName.tar");
+        new tar.TarCreator(archive).inflate(source);
+        assertEquals(Compression.NONE, Compression.detect(archive));
+
+        File bzipNamed = new File(WORK_HOME, "testBzipNamed.txt");
+        FileUtils.writeStringToFile(bzipNamed, "BZh9 is not a bzip2 stream", "UTF-8");
+        assertEquals(Compression.NONE, Compression.detect(bzipNamed));
+
+        // Read as a stream, whose compression is detected before reading the entries
+        tar.TarExtractor extractor = new tar.TarExtractor(new InputStreamResource(new FileInputStream(archive)));
+        assertEquals("not compressed", IOUtils.toString(extractor.deflate("BZh91AY&SY.txt"), "UTF-8"));
+        System.out.println("Plain tar named like bzip2 done");
+    }
+
+    @Test
+    public void testOpenEntryStreamIndexedGzip() throws Exception {
+        File input = ResourceUtils.getFile("classpath:tar/testData/Input/");
+        File archive = new File(WORK_HOME, "testTarFileIndexed.tar.gz");
+        tar.TarCreator creator = new tar.TarCreator(archive);
+        creator.setCompression(Compression.GZIP);
+        creator.setIndependentBlocks(true);
+        creator.setWriteIndex(true);
+        creator.inflate(input);
+        assertTrue(ArchiveIndex.getIndexFile(archive).isFile());
+        GzipBlockIndex blockIndex = GzipBlockIndex.load(archive);
+        assertTrue(blockIndex.getBlockCount() > 50);
+        assertEquals(0, blockIndex.findBlock(0));
+        assertEquals(1, blockIndex.findBlock(blockIndex.getUncompressedOffset(1)));
+
+        tar.TarExtractor extractor = new tar.TarExtractor(new FileSystemResource(archive));
+        extractor.setUseIndex(true);
+        assertTrue(extractor.entryExist("Photo.jpg"));
+        assertFalse(extractor.entryExist("missing.txt"));
+        for (String name : new String[] { "In_sea.webm", "testFile.txt", "Photo.jpg" }) {
+            InputStream entryInputStream = extractor.openEntryStream(name);
+            try {
+                assertTrue(name, IOUtils.contentEquals(new FileInputStream(new File(input, name)),
+                        entryInputStream));
+            } finally {
+                entryInputStream.close();
+            }
+        }
+        System.out.println("Indexed gzip entry stream done");
+    }
+
+    @Test
+    public void testDeflatePaxSparse() throws Exception {
+        // Archives written by GNU tar 1.34 with --format=pax --sparse --sparse-version=0.0, 0.1 and 1.0
+        byte[] expected = new byte[4 * 64 * 1024];
+        for (int i = 0; i < 3; i++) {
+            Arrays.fill(expected, i * 64 * 1024, i * 64 * 1024 + 1024, (byte) (i + 1));
+        }
+        for (String version : new String[] { "0.0", "0.1", "1.0" }) {
+            File archive = ResourceUtils.getFile("classpath:tar/testData/PaxSparse/sparse-" + version + ".tar");
+            // Scanned from the file, and read from a resource that is not a file
+            Resource[] resources = { new FileSystemResource(archive),
+                    new InputStreamResource(new FileInputStream(archive)) };
+            for (int i = 0; i < resources.length; i++) {
+                File destination = new File(WORK_HOME, "PaxSparse" + version + "-" + i);
+                FileUtils.deleteDirectory(destination);
+                destination.mkdirs();
+                new tar.TarExtractor(resources[i]).deflate(destination);
+                assertArrayEquals(version, expected,
+                        FileUtils.readFileToByteArray(new File(destination, "sparse.bin")));
+                assertEquals(version, 1, destination.list().length);
+            }
+
+            FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+            try {
+                tar.TarEntryScanner scanner = new tar.TarEntryScanner(channel);
+                TarArchiveEntry entry = scanner.getNextEntry();
+                assertEquals("sparse.bin", entry.getName());
+                assertTrue(entry.isGNUSparse());
+                assertEquals(expected.length, entry.getRealSize());
+                assertEquals(3 * 4096, scanner.getDataSize());
+                assertNull(scanner.getNextEntry());
+            } finally {
+                channel.close();
+            }
+        }
+        System.out.println("Pax sparse done");
+    }
+}